@@ -17,6 +17,7 @@ import org.codelibs.fesen.extension.analysis.ProlongedSoundMarkCharFilterFactory
 import org.codelibs.fesen.extension.analysis.ReloadableKeywordMarkerFilterFactory;
 import org.codelibs.fesen.extension.analysis.ReloadableKuromojiTokenizerFactory;
 import org.codelibs.fesen.extension.analysis.ReloadableStopFilterFactory;
+import org.codelibs.fesen.extension.analysis.SharedResourceRegistry;
 import org.codelibs.fesen.extension.analysis.StopTokenPrefixFilterFactory;
 import org.codelibs.fesen.extension.analysis.StopTokenSuffixFilterFactory;
 import org.codelibs.fesen.extension.kuromoji.index.analysis.JapaneseStopTokenFilterFactory;
@@ -26,15 +27,31 @@ import org.codelibs.fesen.extension.kuromoji.index.analysis.KuromojiKatakanaStem
 import org.codelibs.fesen.extension.kuromoji.index.analysis.KuromojiNumberFilterFactory;
 import org.codelibs.fesen.extension.kuromoji.index.analysis.KuromojiPartOfSpeechFilterFactory;
 import org.codelibs.fesen.extension.kuromoji.index.analysis.KuromojiReadingFormFilterFactory;
+import org.codelibs.fesen.index.Index;
+import org.codelibs.fesen.index.IndexModule;
+import org.codelibs.fesen.index.IndexSettings;
 import org.codelibs.fesen.index.analysis.CharFilterFactory;
 import org.codelibs.fesen.index.analysis.TokenFilterFactory;
 import org.codelibs.fesen.index.analysis.TokenizerFactory;
+import org.codelibs.fesen.index.shard.IndexEventListener;
 import org.codelibs.fesen.indices.analysis.AnalysisModule.AnalysisProvider;
+import org.codelibs.fesen.indices.cluster.IndicesClusterStateService.AllocatedIndices.IndexRemovalReason;
 import org.codelibs.fesen.plugins.AnalysisPlugin;
 import org.codelibs.fesen.plugins.Plugin;
 
 public class ExtensionPlugin extends Plugin implements AnalysisPlugin {
 
+    @Override
+    public void onIndexModule(final IndexModule indexModule) {
+        // releases the shared dictionaries and file watches of the analysis factories of a removed index
+        indexModule.addIndexEventListener(new IndexEventListener() {
+            @Override
+            public void afterIndexRemoved(final Index index, final IndexSettings indexSettings, final IndexRemovalReason reason) {
+                SharedResourceRegistry.runCleanups(index);
+            }
+        });
+    }
+
     @Override
     public Map<String, AnalysisProvider<CharFilterFactory>> getCharFilters() {
         final Map<String, AnalysisProvider<CharFilterFactory>> extra = new HashMap<>();
@@ -0,0 +1,76 @@
+package org.codelibs.fesen.extension.analysis;
+
+import java.security.AccessController;
+import java.security.PrivilegedAction;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinWorkerThread;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Node-level executors used by this plugin outside of indexing and search threads.
+ */
+public final class AnalysisExecutors {
+
+    private static final int RELOAD_QUEUE_SIZE = 1000;
+
+    private AnalysisExecutors() {
+    }
+
+    /**
+     * Returns a bounded executor that rebuilds reloadable resources.
+     * When the queue is full, the rebuild runs on the submitting thread.
+     */
+    public static ExecutorService reloadExecutor() {
+        return ReloadExecutorHolder.EXECUTOR;
+    }
+
+    private static final class ReloadExecutorHolder {
+        private static final ExecutorService EXECUTOR = newReloadExecutor();
+
+        private static ExecutorService newReloadExecutor() {
+            final int size = Math.max(1, Math.min(4, Runtime.getRuntime().availableProcessors() / 2));
+            final ThreadPoolExecutor executor = new ThreadPoolExecutor(size, size, 60, TimeUnit.SECONDS,
+                    new ArrayBlockingQueue<>(RELOAD_QUEUE_SIZE), daemonThreadFactory("analysis-extension-reload"),
+                    new ThreadPoolExecutor.CallerRunsPolicy());
+            executor.allowCoreThreadTimeOut(true);
+            return executor;
+        }
+    }
+
+    /**
+     * Returns the pool for CPU-bound work split into parts, such as tokenizing a large input
+     * or parsing a large synonym file.
+     */
+    public static ForkJoinPool tokenizeExecutor() {
+        return TokenizeExecutorHolder.EXECUTOR;
+    }
+
+    private static final class TokenizeExecutorHolder {
+        private static final ForkJoinPool EXECUTOR = newTokenizeExecutor();
+
+        private static ForkJoinPool newTokenizeExecutor() {
+            final AtomicInteger count = new AtomicInteger();
+            return new ForkJoinPool(Runtime.getRuntime().availableProcessors(),
+                    pool -> AccessController.doPrivileged((PrivilegedAction<ForkJoinWorkerThread>) () -> {
+                        final ForkJoinWorkerThread thread = ForkJoinPool.defaultForkJoinWorkerThreadFactory.newThread(pool);
+                        thread.setName("analysis-extension-tokenize-" + count.incrementAndGet());
+                        thread.setDaemon(true);
+                        return thread;
+                    }), null, false);
+        }
+    }
+
+    static ThreadFactory daemonThreadFactory(final String prefix) {
+        final AtomicInteger count = new AtomicInteger();
+        return r -> AccessController.doPrivileged((PrivilegedAction<Thread>) () -> {
+            final Thread thread = new Thread(r, prefix + "-" + count.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+}
@@ -0,0 +1,37 @@
+package org.codelibs.fesen.extension.analysis;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.zip.CRC32C;
+
+/**
+ * CRC32C checksums of analysis resources, computed in a single streaming pass.
+ */
+public final class ContentDigest {
+
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    private ContentDigest() {
+    }
+
+    public static long of(final Path path) throws IOException {
+        final CRC32C crc = new CRC32C();
+        final byte[] buffer = new byte[BUFFER_SIZE];
+        try (InputStream in = Files.newInputStream(path)) {
+            int len;
+            while ((len = in.read(buffer)) != -1) {
+                crc.update(buffer, 0, len);
+            }
+        }
+        return crc.getValue();
+    }
+
+    public static long of(final String text) {
+        final CRC32C crc = new CRC32C();
+        crc.update(text.getBytes(StandardCharsets.UTF_8));
+        return crc.getValue();
+    }
+}
@@ -0,0 +1,49 @@
+package org.codelibs.fesen.extension.analysis;
+
+import java.util.Collections;
+import java.util.Map;
+import java.util.WeakHashMap;
+
+import org.apache.lucene.analysis.synonym.SynonymMap;
+import org.apache.lucene.util.BytesRef;
+import org.apache.lucene.util.UnicodeUtil;
+
+/**
+ * The output words of a {@link SynonymMap} decoded to chars and indexed by their ords,
+ * so a synonym hit copies its words instead of decoding them. The words of a map are decoded once and shared.
+ * The words of a map loaded from a {@link SynonymMapArtifact} are not decoded, so that the map keeps its small heap.
+ */
+final class DecodedSynonymWords {
+
+    private static final Map<SynonymMap, char[][]> WORDS = Collections.synchronizedMap(new WeakHashMap<>());
+
+    private DecodedSynonymWords() {
+    }
+
+    /**
+     * Returns the decoded words of {@code synonymMap}, or null if the words are decoded on each hit.
+     */
+    static char[][] get(final SynonymMap synonymMap) {
+        if (SynonymMapArtifact.isArtifact(synonymMap)) {
+            return null;
+        }
+        final char[][] words = WORDS.get(synonymMap);
+        if (words != null) {
+            return words;
+        }
+        final char[][] newWords = new char[synonymMap.words.size()][];
+        final BytesRef scratch = new BytesRef();
+        char[] chars = new char[16];
+        for (int ord = 0; ord < newWords.length; ord++) {
+            synonymMap.words.get(ord, scratch);
+            if (chars.length < scratch.length) {
+                chars = new char[scratch.length];
+            }
+            final int length = UnicodeUtil.UTF8toUTF16(scratch, chars);
+            newWords[ord] = new char[length];
+            System.arraycopy(chars, 0, newWords[ord], 0, length);
+        }
+        final char[][] oldWords = WORDS.putIfAbsent(synonymMap, newWords);
+        return oldWords != null ? oldWords : newWords;
+    }
+}
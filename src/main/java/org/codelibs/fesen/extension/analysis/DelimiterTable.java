@@ -0,0 +1,106 @@
+package org.codelibs.fesen.extension.analysis;
+
+import java.util.Collections;
+import java.util.List;
+import java.util.Locale;
+import java.util.function.IntPredicate;
+
+/**
+ * Bitset of the BMP characters that end a block of {@link NGramSynonymTokenizer}, built from a string of
+ * delimiters and from character classes. A class is one of punctuation, whitespace, symbol, control, digit
+ * and letter, or the name of a {@link Character.UnicodeScript}. Classes are only checked for BMP characters.
+ */
+final class DelimiterTable {
+
+    private final long[] bits = new long[1 << 10];
+
+    private DelimiterTable() {
+    }
+
+    static DelimiterTable of(final String delimiters) {
+        return of(delimiters, Collections.emptyList());
+    }
+
+    static DelimiterTable of(final String delimiters, final List<String> classes) {
+        final DelimiterTable table = new DelimiterTable();
+        for (int i = 0; i < delimiters.length(); i++) {
+            table.set(delimiters.charAt(i));
+        }
+        for (final String name : classes) {
+            final String className = name.trim().toLowerCase(Locale.ROOT);
+            switch (className) {
+            case "punctuation":
+                table.setAll(DelimiterTable::isPunctuation);
+                break;
+            case "whitespace":
+                table.setAll(c -> Character.isWhitespace(c) || Character.isSpaceChar(c));
+                break;
+            case "symbol":
+                table.setAll(DelimiterTable::isSymbol);
+                break;
+            case "control":
+                table.setAll(Character::isISOControl);
+                break;
+            case "digit":
+                table.setAll(Character::isDigit);
+                break;
+            case "letter":
+                table.setAll(Character::isLetter);
+                break;
+            default:
+                final Character.UnicodeScript script;
+                try {
+                    script = Character.UnicodeScript.forName(className);
+                } catch (final IllegalArgumentException e) {
+                    throw new IllegalArgumentException("Unknown delimiter class: " + name, e);
+                }
+                table.setAll(c -> !Character.isSurrogate((char) c) && Character.UnicodeScript.of(c) == script);
+                break;
+            }
+        }
+        return table;
+    }
+
+    boolean contains(final int c) {
+        return c >= 0 && c <= Character.MAX_VALUE && (bits[c >>> 6] & 1L << c) != 0;
+    }
+
+    private void set(final int c) {
+        bits[c >>> 6] |= 1L << c;
+    }
+
+    private void setAll(final IntPredicate predicate) {
+        for (int c = 0; c <= Character.MAX_VALUE; c++) {
+            if (predicate.test(c)) {
+                set(c);
+            }
+        }
+    }
+
+    private static boolean isPunctuation(final int c) {
+        switch (Character.getType(c)) {
+        case Character.CONNECTOR_PUNCTUATION:
+        case Character.DASH_PUNCTUATION:
+        case Character.START_PUNCTUATION:
+        case Character.END_PUNCTUATION:
+        case Character.INITIAL_QUOTE_PUNCTUATION:
+        case Character.FINAL_QUOTE_PUNCTUATION:
+        case Character.OTHER_PUNCTUATION:
+            return true;
+        default:
+            return false;
+        }
+    }
+
+    private static boolean isSymbol(final int c) {
+        switch (Character.getType(c)) {
+        case Character.MATH_SYMBOL:
+        case Character.CURRENCY_SYMBOL:
+        case Character.MODIFIER_SYMBOL:
+        case Character.OTHER_SYMBOL:
+            return true;
+        default:
+            return false;
+        }
+    }
+}
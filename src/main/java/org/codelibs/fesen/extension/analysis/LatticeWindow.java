@@ -0,0 +1,156 @@
+package org.codelibs.fesen.extension.analysis;
+
+import java.io.CharArrayReader;
+import java.io.IOException;
+import java.io.Reader;
+
+import org.apache.lucene.analysis.ja.JapaneseTokenizer;
+import org.apache.lucene.analysis.tokenattributes.OffsetAttribute;
+
+/**
+ * Feeds a {@link JapaneseTokenizer} with windows of at most a fixed number of characters,
+ * so its lattice and buffers never cover more than one window. A full window is cut after
+ * its last sentence end in the second half, or else after the last whitespace or comma,
+ * or else at the last change of the character class, or else at the end of the window.
+ * The tokenizer sees each window as a whole input, and the offsets are shifted back to the input.
+ */
+final class LatticeWindow {
+
+    // a cut is searched in the second half, which must hold a few sentences
+    static final int MIN_SIZE = 256;
+
+    // each tokenizer allocates a window
+    static final int MAX_SIZE = 1024 * 1024;
+
+    private final char[] buffer;
+
+    private Reader source;
+
+    // offset of buffer[0] in the input
+    private int base;
+
+    private int length;
+
+    // number of characters of the buffer passed to the tokenizer
+    private int cut;
+
+    private boolean exhausted;
+
+    private boolean done;
+
+    LatticeWindow(final int size) {
+        buffer = new char[size];
+    }
+
+    void reset(final JapaneseTokenizer tokenizer, final Reader source) throws IOException {
+        this.source = source;
+        base = 0;
+        length = 0;
+        cut = 0;
+        exhausted = false;
+        done = false;
+        next(tokenizer);
+    }
+
+    boolean incrementToken(final JapaneseTokenizer tokenizer, final OffsetAttribute offsetAtt) throws IOException {
+        if (done) {
+            return false;
+        }
+        while (!tokenizer.incrementToken()) {
+            tokenizer.end();
+            tokenizer.close();
+            if (exhausted && cut == length) {
+                done = true;
+                source = null;
+                return false;
+            }
+            next(tokenizer);
+        }
+        offsetAtt.setOffset(base + offsetAtt.startOffset(), base + offsetAtt.endOffset());
+        return true;
+    }
+
+    /**
+     * Returns the number of characters passed to the tokenizer so far.
+     */
+    int getFinalOffset() {
+        return base + cut;
+    }
+
+    private void next(final JapaneseTokenizer tokenizer) throws IOException {
+        System.arraycopy(buffer, cut, buffer, 0, length - cut);
+        base += cut;
+        length -= cut;
+        while (!exhausted && length < buffer.length) {
+            final int n = source.read(buffer, length, buffer.length - length);
+            if (n == -1) {
+                exhausted = true;
+            } else {
+                length += n;
+            }
+        }
+        cut = exhausted ? length : findCut(buffer, length);
+        tokenizer.setReader(new CharArrayReader(buffer, 0, cut));
+        tokenizer.reset();
+    }
+
+    static int findCut(final char[] text, final int length) {
+        int bestRank = 0;
+        int bestCut = Character.isHighSurrogate(text[length - 1]) && length > 1 ? length - 1 : length;
+        for (int i = length - 2; i >= length / 2; i--) {
+            final int rank = getCutRank(text[i], text[i + 1]);
+            if (rank > bestRank) {
+                bestRank = rank;
+                bestCut = i + 1;
+                if (rank == 3) {
+                    break;
+                }
+            }
+        }
+        return bestCut;
+    }
+
+    private static int getCutRank(final char c, final char next) {
+        switch (c) {
+        case '。':
+        case '！':
+        case '？':
+        case '!':
+        case '?':
+        case '\n':
+        case '\r':
+            return 3;
+        case '、':
+        case '，':
+        case ',':
+        case ' ':
+        case '\t':
+        case '　':
+            return 2;
+        case '.':
+            // not in numbers or host names
+            return Character.isWhitespace(next) ? 3 : 0;
+        default:
+            return getCharClass(c) != getCharClass(next) ? 1 : 0;
+        }
+    }
+
+    private static int getCharClass(final char c) {
+        if (c >= '\u3040' && c <= '\u309f') {
+            return 1; // hiragana
+        }
+        if (c >= '\u30a0' && c <= '\u30ff') {
+            return 2; // katakana
+        }
+        if (Character.isIdeographic(c)) {
+            return 3;
+        }
+        if (Character.isDigit(c)) {
+            return 4;
+        }
+        if (Character.isLetter(c)) {
+            return 5;
+        }
+        return 0;
+    }
+}
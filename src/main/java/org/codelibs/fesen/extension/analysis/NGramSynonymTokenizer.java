@@ -18,10 +18,7 @@ package org.codelibs.fesen.extension.analysis;
  */
 
 import java.io.IOException;
-import java.util.ArrayList;
-import java.util.Comparator;
-import java.util.List;
-import java.util.PriorityQueue;
+import java.util.Arrays;
 
 import org.apache.lucene.analysis.Tokenizer;
 import org.apache.lucene.analysis.synonym.SynonymMap;
@@ -29,8 +26,10 @@ import org.apache.lucene.analysis.tokenattributes.CharTermAttribute;
 import org.apache.lucene.analysis.tokenattributes.OffsetAttribute;
 import org.apache.lucene.analysis.tokenattributes.PositionIncrementAttribute;
 import org.apache.lucene.store.ByteArrayDataInput;
+import org.apache.lucene.util.ArrayUtil;
 import org.apache.lucene.util.BytesRef;
 import org.apache.lucene.util.CharsRef;
+import org.apache.lucene.util.RamUsageEstimator;
 import org.apache.lucene.util.UnicodeUtil;
 import org.apache.lucene.util.fst.FST;
 
@@ -45,31 +44,30 @@ public final class NGramSynonymTokenizer extends Tokenizer {
 
     private final int n;
 
-    private final String delimiters;
+    private final DelimiterTable delimiters;
 
     private final boolean expand;
 
     private final boolean ignoreCase;
 
-    private final SynonymLoader synonymLoader;
+    // true to produce only the n-grams that cover the text, for queries
+    private final boolean coveringGrams;
 
-    private long lastModified;
+    private final SynonymSource base;
 
-    private SynonymMap synonymMap = null;
+    // consulted before the base; null without synonyms_overlay_path
+    private final SynonymSource overlay;
 
-    private FST.Arc<BytesRef> scratchArc;
+    private final ByteArrayDataInput bytesReader = new ByteArrayDataInput();
 
-    private FST<BytesRef> fst;
+    private char[] lowerCaseChars = new char[16];
 
-    private FST.BytesReader fstReader;
+    // a synonym word decoded from its map when the words are not decoded in advance
+    private final BytesRef wordBytes = new BytesRef();
 
-    private final BytesRef scratchBytes = new BytesRef();
+    private char[] wordChars = new char[16];
 
-    private final CharsRef scratchChars = new CharsRef();
-
-    private int longestMatchEndOffset;
-
-    private int ch;
+    private boolean exhausted;
 
     private final char[] readBuffer;
 
@@ -77,7 +75,31 @@ public final class NGramSynonymTokenizer extends Tokenizer {
 
     private int readBufferLen;
 
-    StringBuilder block;
+    final CharsRef block = new CharsRef(64);
+
+    // maximum number of characters of a block kept in memory, or 0 to read whole blocks
+    private final int windowSize;
+
+    // offset of block.chars[0] in the block
+    private int blockBase;
+
+    // false while the rest of the block has not been read
+    private boolean blockComplete = true;
+
+    // the block offsets before which the synonyms are found, and the tokens are produced
+    private int matchOffset;
+
+    private int tokenizedOffset;
+
+    // the range of start offsets of the tokens produced by tokenizeBlock
+    private int tokenizeFrom;
+
+    private int tokenizeTo;
+
+    // the end of the last dropped synonym, and whether after-synonym tokens follow it
+    private int gapStart;
+
+    private boolean gapAfterSynonymProduced;
 
     int blkStart;
 
@@ -85,11 +107,21 @@ public final class NGramSynonymTokenizer extends Tokenizer {
 
     private int finalOffset;
 
-    private final PriorityQueue<MyToken> queue;
+    private final TokenBuffer tokens = new TokenBuffer();
+
+    // index of the last token in tokens, or -1
+    private int prevToken = -1;
 
-    private MyToken prevToken;
+    // synonym matches of the block
+    private int synonymCount;
 
-    private final List<MyToken> synonyms;
+    private int[] synonymStarts = new int[8];
+
+    private int[] synonymEnds = new int[8];
+
+    private BytesRef[] synonymOutputs = new BytesRef[8];
+
+    private SynonymSource[] synonymSources = new SynonymSource[8];
 
     private final CharTermAttribute termAttr = addAttribute(CharTermAttribute.class);
 
@@ -99,165 +131,288 @@ public final class NGramSynonymTokenizer extends Tokenizer {
 
     protected NGramSynonymTokenizer(final int n, final String delimiters, final boolean expand, final boolean ignoreCase,
             final SynonymLoader synonymLoader) {
+        this(n, delimiters, expand, ignoreCase, synonymLoader, null);
+    }
+
+    protected NGramSynonymTokenizer(final int n, final String delimiters, final boolean expand, final boolean ignoreCase,
+            final SynonymLoader synonymLoader, final SynonymLoader overlayLoader) {
+        this(n, DelimiterTable.of(delimiters), expand, ignoreCase, synonymLoader, overlayLoader, null, 0, false);
+    }
+
+    /**
+     * @param matcherType "automaton" to find synonyms with a {@link SynonymMatcher}, "fst" to walk the FST at each position,
+     *            or null to choose by the map as in {@link SynonymMatcher#isEnabled(String, SynonymMap)}
+     * @param windowSize the maximum number of characters of a block to keep, or 0 to keep whole blocks
+     * @param coveringGrams true to skip the n-grams overlapped by the previous and the next n-grams between synonyms,
+     *            with position increments over the skipped ones
+     */
+    NGramSynonymTokenizer(final int n, final DelimiterTable delimiters, final boolean expand, final boolean ignoreCase,
+            final SynonymLoader synonymLoader, final SynonymLoader overlayLoader, final String matcherType, final int windowSize,
+            final boolean coveringGrams) {
         this.n = n;
+        this.coveringGrams = coveringGrams;
+        this.windowSize = windowSize;
         this.delimiters = delimiters;
         this.expand = expand;
         this.ignoreCase = ignoreCase;
-        if (synonymLoader != null) {
-            if (synonymLoader.isReloadable()) {
-                this.synonymLoader = synonymLoader;
-                this.lastModified = synonymLoader.getLastModified();
-            } else {
-                this.synonymLoader = null;
-                this.lastModified = System.currentTimeMillis();
-            }
-            synonymMap = synonymLoader.getSynonymMap();
-            if (synonymMap != null && synonymMap.fst == null) {
-                this.synonymMap = null;
-            }
-        } else {
-            this.synonymLoader = null;
-        }
-        if (synonymMap != null) {
-            this.fst = synonymMap.fst;
-            this.fstReader = fst.getBytesReader();
-            scratchArc = new FST.Arc<>();
-        }
+        base = new SynonymSource(synonymLoader, matcherType);
+        overlay = overlayLoader != null ? new SynonymSource(overlayLoader, matcherType) : null;
 
-        ch = 0;
         readBuffer = new char[BUFFER_SIZE];
         readBufferIndex = BUFFER_SIZE;
         readBufferLen = 0;
-        block = new StringBuilder();
         nextBlkStart = 0;
-        queue = new PriorityQueue<>(100, new MyTokensComparator());
-        this.synonyms = new ArrayList<>();
     }
 
     @Override
     public boolean incrementToken() throws IOException {
         while (true) {
-            final MyToken nextToken = getNextUniqueToken(queue, prevToken);
-            if (nextToken != null) {
+            final int nextToken = getNextUniqueToken();
+            if (nextToken >= 0) {
                 prevToken = nextToken;
                 clearAttributes();
-                termAttr.append(nextToken.word);
-                finalOffset = correctOffset(blkStart + nextToken.endOffset);
-                offsetAttr.setOffset(correctOffset(blkStart + nextToken.startOffset), finalOffset);
-                posIncAttr.setPositionIncrement(nextToken.posInc);
+                final int termOffset = tokens.termOffsets[nextToken];
+                if (termOffset < 0) {
+                    termAttr.copyBuffer(block.chars, tokens.startOffsets[nextToken] - blockBase,
+                            tokens.endOffsets[nextToken] - tokens.startOffsets[nextToken]);
+                } else {
+                    termAttr.copyBuffer(tokens.terms, termOffset, tokens.termLengths[nextToken]);
+                }
+                finalOffset = correctOffset(blkStart + tokens.endOffsets[nextToken]);
+                offsetAttr.setOffset(correctOffset(blkStart + tokens.startOffsets[nextToken]), finalOffset);
+                posIncAttr.setPositionIncrement(tokens.posIncs[nextToken]);
                 return true;
             }
-            getNextBlock();
-            if (block.length() == 0) {
+            if (!blockComplete) {
+                slideWindow();
+            } else if (!getNextBlock()) {
                 return false;
             }
             consultDictionary();
-            tokenizeWholeBlock();
+            tokenizeBlock();
         }
     }
 
-    static MyToken getNextUniqueToken(final PriorityQueue<MyToken> que, final MyToken prev) {
+    private int getNextUniqueToken() {
         while (true) {
-            final MyToken token = que.poll();
-            if (token == null) {
-                return null;
+            final int token = tokens.poll();
+            if (token < 0) {
+                return -1;
             }
-            if (prev == null || !prev.identical(token)) {
+            if (prevToken < 0 || !identical(prevToken, token)) {
                 return token;
             }
         }
     }
 
+    // a token with the same term and offsets as the previous one, at the same position
+    private boolean identical(final int prev, final int token) {
+        if (tokens.posIncs[token] != 0 || tokens.startOffsets[prev] != tokens.startOffsets[token]
+                || tokens.endOffsets[prev] != tokens.endOffsets[token]) {
+            return false;
+        }
+        final int length = tokens.termLengths[prev];
+        if (length != tokens.termLengths[token]) {
+            return false;
+        }
+        for (int i = 0; i < length; i++) {
+            if (getTermChar(prev, i) != getTermChar(token, i)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private char getTermChar(final int token, final int index) {
+        final int termOffset = tokens.termOffsets[token];
+        return termOffset < 0 ? block.chars[tokens.startOffsets[token] - blockBase + index] : tokens.terms[termOffset + index];
+    }
+
+    private boolean termEquals(final int token, final char[] chars, final int length) {
+        if (length != tokens.termLengths[token]) {
+            return false;
+        }
+        for (int i = 0; i < length; i++) {
+            if (getTermChar(token, i) != chars[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Finds the synonyms from {@link #matchOffset}. Unless the block is complete, it stops where a key
+     * could extend past the window.
+     */
     void consultDictionary() throws IOException {
-        if (synonymMap == null) {
+        final boolean hasOverlay = overlay != null && overlay.synonymMap != null;
+        final char[] text = block.chars;
+        final int length = block.length;
+        if (base.synonymMap == null && !hasOverlay) {
+            matchOffset = blockBase + length;
             return;
         }
-        synonyms.clear();
-        final char[] key = block.toString().toCharArray();
-        for (int start = 0; start < block.length();) {
-            final BytesRef matchOutput = getLongestMatchOutput(key, start);
-            if (matchOutput == null) {
+        final int offset = matchOffset - blockBase;
+        // a match at or before limit cannot be replaced by a longer one in the rest of the block
+        final int limit = blockComplete ? length : length - getMaxKeyLength();
+        if (hasOverlay) {
+            overlay.findMatches(text, offset, length, ignoreCase);
+        }
+        if (base.synonymMap != null) {
+            base.findMatches(text, offset, length, ignoreCase);
+        }
+        int start = offset;
+        while (start < length && start <= limit) {
+            // the longest match wins, and the overlay wins a tie
+            SynonymSource match = null;
+            int matchEnd = -1;
+            if (hasOverlay) {
+                matchEnd = overlay.match(text, length, start, ignoreCase);
+                if (matchEnd != -1) {
+                    match = overlay;
+                }
+            }
+            if (base.synonymMap != null) {
+                final int baseEnd = base.match(text, length, start, ignoreCase);
+                if (baseEnd > matchEnd) {
+                    match = base;
+                    matchEnd = baseEnd;
+                }
+            }
+            if (match == null) {
                 start++;
                 continue;
             }
 
-            synonyms.add(new MyToken(key, start, longestMatchEndOffset, 1, matchOutput.clone(), ignoreCase)); // TODO synonym
-            start = longestMatchEndOffset;
+            addSynonym(blockBase + start, blockBase + matchEnd, match.getMatchOutput(start), match);
+            start = matchEnd;
         }
+        matchOffset = blockBase + start;
     }
 
-    BytesRef getLongestMatchOutput(final char[] src, final int start) throws IOException {
-        BytesRef pendingOutput = fst.outputs.getNoOutput();
-        fst.getFirstArc(scratchArc);
-        BytesRef matchOutput = null;
+    private int getMaxKeyLength() {
+        final int baseLength = base.synonymMap != null ? base.getMaxKeyLength() : 0;
+        return overlay != null && overlay.synonymMap != null ? Math.max(baseLength, overlay.getMaxKeyLength()) : baseLength;
+    }
 
-        int index = 0;
-        while (start + index < src.length) {
-            final int codePoint = Character.codePointAt(src, start + index, src.length);
-            if (fst.findTargetArc(ignoreCase ? Character.toLowerCase(codePoint) : codePoint, scratchArc, scratchArc, fstReader) == null) {
-                return matchOutput;
-            }
+    private void addSynonym(final int startOffset, final int endOffset, final BytesRef output, final SynonymSource source) {
+        if (synonymCount == synonymStarts.length) {
+            final int size = ArrayUtil.oversize(synonymCount + 1, RamUsageEstimator.NUM_BYTES_OBJECT_REF);
+            synonymStarts = Arrays.copyOf(synonymStarts, size);
+            synonymEnds = Arrays.copyOf(synonymEnds, size);
+            synonymOutputs = Arrays.copyOf(synonymOutputs, size);
+            synonymSources = Arrays.copyOf(synonymSources, size);
+        }
+        synonymStarts[synonymCount] = startOffset;
+        synonymEnds[synonymCount] = endOffset;
+        synonymOutputs[synonymCount] = output;
+        synonymSources[synonymCount] = source;
+        synonymCount++;
+    }
 
-            pendingOutput = fst.outputs.add(pendingOutput, scratchArc.output());
+    /**
+     * Produces the tokens that start between {@link #tokenizedOffset} and the offset up to which the tokens
+     * no longer depend on the rest of the block.
+     */
+    void tokenizeBlock() {
+        tokens.clear();
+        prevToken = -1;
+        final int end = blockBase + block.length;
+        tokenizeFrom = tokenizedOffset;
+        // a token depends on the synonyms that start before its start + n, and a covering n-gram
+        // on whether a synonym starts right after it
+        tokenizeTo = blockComplete ? end : Math.max(tokenizedOffset, matchOffset - n + (coveringGrams ? 0 : 1));
+        int nextStart = gapStart;
+        boolean afterSynonymProduced = gapAfterSynonymProduced;
+        for (int idx = 0; idx < synonymCount; idx++) {
+            final int synonymStart = synonymStarts[idx];
+            final int synonymEnd = synonymEnds[idx];
+            tokenizePartialBlock(nextStart, synonymStart, afterSynonymProduced);
 
-            if (scratchArc.isFinal()) {
-                matchOutput = fst.outputs.add(pendingOutput, scratchArc.nextFinalOutput());
-                longestMatchEndOffset = start + index + Character.charCount(codePoint);
+            // enqueue prev-synonym
+            processPrevSynonym(synonymStart, idx > 0 ? synonymEnds[idx - 1] : gapStart);
+
+            if (synonymStart >= tokenizeFrom && synonymStart < tokenizeTo) {
+                addSynonymTokens(idx);
             }
 
-            index += Character.charCount(codePoint);
-        }
+            // enqueue after-synonym
+            afterSynonymProduced = processAfterSynonym(synonymEnd, idx < synonymCount - 1 ? synonymStarts[idx + 1] : end);
 
-        return matchOutput;
+            nextStart = synonymEnd;
+        }
+        tokenizePartialBlock(nextStart, end, afterSynonymProduced);
+        tokenizedOffset = tokenizeTo;
+
+        // drop the synonyms whose tokens have all been produced
+        int dropped = 0;
+        while (dropped < synonymCount && synonymEnds[dropped] < tokenizedOffset) {
+            gapStart = synonymEnds[dropped];
+            gapAfterSynonymProduced = n > 1 && gapStart < (dropped < synonymCount - 1 ? synonymStarts[dropped + 1] : end);
+            dropped++;
+        }
+        if (dropped > 0) {
+            synonymCount -= dropped;
+            System.arraycopy(synonymStarts, dropped, synonymStarts, 0, synonymCount);
+            System.arraycopy(synonymEnds, dropped, synonymEnds, 0, synonymCount);
+            System.arraycopy(synonymOutputs, dropped, synonymOutputs, 0, synonymCount);
+            System.arraycopy(synonymSources, dropped, synonymSources, 0, synonymCount);
+            Arrays.fill(synonymOutputs, synonymCount, synonymCount + dropped, null);
+            Arrays.fill(synonymSources, synonymCount, synonymCount + dropped, null);
+        }
     }
 
-    void tokenizeWholeBlock() {
-        queue.clear();
-        int nextStart = 0;
-        final int end = block.length();
-        boolean afterSynonymProduced = false;
-        final ByteArrayDataInput bytesReader = new ByteArrayDataInput();
-        for (int idx = 0; idx < synonyms.size(); idx++) {
-            final MyToken synonym = synonyms.get(idx);
-            tokenizePartialBlock(nextStart, synonym.startOffset, afterSynonymProduced);
+    private void addSynonymTokens(final int idx) {
+        final int synonymStart = synonymStarts[idx];
+        final int synonymEnd = synonymEnds[idx];
 
-            // enqueue prev-synonym
-            processPrevSynonym(synonym.startOffset, idx > 0 ? synonyms.get(idx - 1).endOffset : 0);
+        // zero for seq means that this token is the original of synonyms
+        int original = -1;
+        if (expand) {
+            original = ignoreCase ? addLowerCaseToken(synonymStart, synonymEnd, 1, 0) : tokens.add(synonymStart, synonymEnd, 1, 0);
+        }
 
-            if (expand) {
-                queue.add(synonym);
+        // enqueue synonyms
+        final BytesRef output = synonymOutputs[idx];
+        bytesReader.reset(output.bytes, output.offset, output.length);
+        final int code = bytesReader.readVInt();
+        final int count = code >>> 1;
+        final SynonymSource source = synonymSources[idx];
+        for (int i = 0; i < count; i++) {
+            final int ord = bytesReader.readVInt();
+            final char[] word;
+            final int wordLength;
+            if (source.words != null) {
+                word = source.words[ord];
+                wordLength = word.length;
+            } else {
+                source.synonymMap.words.get(ord, wordBytes);
+                wordChars = ArrayUtil.grow(wordChars, wordBytes.length);
+                word = wordChars;
+                wordLength = UnicodeUtil.UTF8toUTF16(wordBytes, wordChars);
             }
-
-            // enqueue synonyms
-            bytesReader.reset(synonym.output.bytes, synonym.output.offset, synonym.output.length);
-            final int code = bytesReader.readVInt();
-            final int count = code >>> 1;
-            for (int i = 0; i < count; i++) {
-                synonymMap.words.get(bytesReader.readVInt(), scratchBytes);
-                if (scratchChars.chars.length < scratchBytes.length) {
-                    scratchChars.chars = new char[scratchBytes.length];
-                }
-                scratchChars.length = UnicodeUtil.UTF8toUTF16(scratchBytes, scratchChars.chars);
-                final String word = scratchChars.toString();
-                int posInc = 0;
-                if (!expand) {
-                    posInc = 1;
-                } else if (synonym.word.equals(word)) {
-                    continue;
-                }
-                queue.add(new MyToken(word, synonym.startOffset, synonym.endOffset, posInc, i + 1));
-                if (!expand) {
-                    break;
-                }
+            int posInc = 0;
+            if (!expand) {
+                posInc = 1;
+            } else if (termEquals(original, word, wordLength)) {
+                continue;
             }
+            tokens.add(synonymStart, synonymEnd, posInc, i + 1, word, 0, wordLength);
+            if (!expand) {
+                break;
+            }
+        }
+    }
 
-            // enqueue after-synonym
-            afterSynonymProduced =
-                    processAfterSynonym(synonym.endOffset, idx < synonyms.size() - 1 ? synonyms.get(idx + 1).startOffset : block.length());
-
-            nextStart = synonym.endOffset;
+    private int addLowerCaseToken(final int startOffset, final int endOffset, final int posInc, final int seq) {
+        lowerCaseChars = ArrayUtil.grow(lowerCaseChars, (endOffset - startOffset) * 2);
+        int length = 0;
+        for (int i = startOffset - blockBase; i < endOffset - blockBase;) {
+            final int codePoint = Character.codePointAt(block.chars, i, endOffset - blockBase);
+            length += Character.toChars(Character.toLowerCase(codePoint), lowerCaseChars, length);
+            i += Character.charCount(codePoint);
         }
-        tokenizePartialBlock(nextStart, end, afterSynonymProduced);
+        return tokens.add(startOffset, endOffset, posInc, seq, lowerCaseChars, 0, length);
     }
 
     void tokenizePartialBlock(final int startOffset, final int endOffset, final boolean afterSynonymProduced) {
@@ -265,36 +420,65 @@ public final class NGramSynonymTokenizer extends Tokenizer {
             return;
         }
 
-        int posInc = afterSynonymProduced ? 0 : 1;
+        final int posInc = afterSynonymProduced ? 0 : 1;
         if (endOffset - startOffset < n) {
-            queue.add(new MyToken(block.substring(startOffset, endOffset), startOffset, endOffset, posInc));
+            addToken(startOffset, endOffset, posInc);
             return;
         }
 
-        for (int i = startOffset; i + n <= endOffset; i++) {
-            queue.add(new MyToken(block.substring(i, i + n), i, i + n, posInc));
-            posInc = 1;
+        if (coveringGrams) {
+            tokenizeCoveringGrams(startOffset, endOffset, posInc);
+            return;
+        }
+        for (int i = Math.max(startOffset, tokenizeFrom); i + n <= endOffset && i < tokenizeTo; i++) {
+            tokens.add(i, i + n, i == startOffset ? posInc : 1, Integer.MAX_VALUE);
+        }
+    }
+
+    /**
+     * Produces every n-th n-gram from {@code startOffset} and the last n-gram before {@code endOffset}.
+     * The first and the last n-grams are kept, so the tokens of the adjacent synonyms keep their positions.
+     */
+    private void tokenizeCoveringGrams(final int startOffset, final int endOffset, final int posInc) {
+        final int tail = endOffset - n;
+        int i = startOffset;
+        if (tokenizeFrom > startOffset) {
+            i = startOffset + (tokenizeFrom - startOffset + n - 1) / n * n;
+        }
+        for (; i <= tail && i < tokenizeTo; i += n) {
+            tokens.add(i, i + n, i == startOffset ? posInc : n, Integer.MAX_VALUE);
+        }
+        if (i > tail && i - n != tail && tail >= tokenizeFrom && tail < tokenizeTo) {
+            tokens.add(tail, endOffset, tail - (i - n), Integer.MAX_VALUE);
         }
     }
 
     void processPrevSynonym(final int endOffset, final int limitOffset) {
         int startOffset = endOffset - 1;
         for (int len = 1; len < n && startOffset >= limitOffset; len++) {
-            queue.add(new MyToken(block.substring(startOffset, endOffset), startOffset, endOffset, 0));
+            addToken(startOffset, endOffset, 0);
             startOffset--;
         }
     }
 
+    /**
+     * Returns true if any after-synonym token, produced now or not, starts at {@code startOffset}.
+     */
     boolean processAfterSynonym(final int startOffset, final int limitOffset) {
-        final int qSize = queue.size();
         int endOffset = startOffset + 1;
         int posInc = 1;
         for (int len = 1; len < n && endOffset <= limitOffset; len++) {
-            queue.add(new MyToken(block.substring(startOffset, endOffset), startOffset, endOffset, posInc));
+            addToken(startOffset, endOffset, posInc);
             endOffset++;
             posInc = 0;
         }
-        return queue.size() > qSize;
+        return n > 1 && startOffset + 1 <= limitOffset;
+    }
+
+    private void addToken(final int startOffset, final int endOffset, final int posInc) {
+        if (startOffset >= tokenizeFrom && startOffset < tokenizeTo) {
+            tokens.add(startOffset, endOffset, posInc, Integer.MAX_VALUE);
+        }
     }
 
     @Override
@@ -306,131 +490,290 @@ public final class NGramSynonymTokenizer extends Tokenizer {
     @Override
     public void reset() throws IOException {
         super.reset();
-        block.setLength(0);
-        prevToken = null;
+        block.length = 0;
+        blockBase = 0;
+        blockComplete = true;
+        tokens.clear();
+        prevToken = -1;
         readBufferIndex = BUFFER_SIZE;
         readBufferLen = 0;
-        ch = 0;
+        exhausted = false;
         blkStart = 0;
         nextBlkStart = 0;
-        if (synonymLoader != null && synonymLoader.isUpdate(lastModified)) {
-            lastModified = synonymLoader.getLastModified();
-            final SynonymMap map = synonymLoader.getSynonymMap();
-            if (map != null) {
-                synonymMap = map;
-                fst = synonymMap.fst;
-                if (fst == null) {
-                    throw new IllegalArgumentException("fst must be non-null");
-                }
-                fstReader = fst.getBytesReader();
-                scratchArc = new FST.Arc<>();
-                clearAttributes();
-            }
+        final boolean baseUpdated = base.refresh();
+        final boolean overlayUpdated = overlay != null && overlay.refresh();
+        if (baseUpdated || overlayUpdated) {
+            clearAttributes();
         }
     }
 
+    /**
+     * Starts the next block, and copies its characters into {@link #block} a whole span of the read buffer
+     * at a time, up to the window size if it is set.
+     */
     boolean getNextBlock() throws IOException {
         blkStart = nextBlkStart;
-        block.setLength(0);
-        prevToken = null;
+        block.length = 0;
+        blockBase = 0;
+        blockComplete = true;
+        prevToken = -1;
+        synonymCount = 0;
+        matchOffset = 0;
+        tokenizedOffset = 0;
+        gapStart = 0;
+        gapAfterSynonymProduced = false;
         while (true) {
-            if (ch != -1) {
-                ch = readCharFromBuffer();
+            if (!fillReadBuffer()) {
+                return false;
             }
-            if (ch == -1) {
-                break;
+            final int start = readBufferIndex;
+            while (readBufferIndex < readBufferLen && isDelimiter(readBuffer[readBufferIndex])) {
+                readBufferIndex++;
             }
-            if (!isDelimiter(ch)) {
-                block.append((char) ch);
-            } else if (block.length() > 0) {
+            blkStart += readBufferIndex - start;
+            nextBlkStart += readBufferIndex - start;
+            if (readBufferIndex < readBufferLen) {
                 break;
-            } else {
-                blkStart++;
             }
         }
-        if (block.length() == 0) {
-            return false;
-        }
+        readBlock();
         return true;
     }
 
-    int readCharFromBuffer() throws IOException {
-        if (readBufferIndex >= readBufferLen) {
-            readBufferLen = input.read(readBuffer);
-            if (readBufferLen == -1) {
-                return -1;
+    /**
+     * Drops the characters before {@link #tokenizedOffset}, and reads more of the block.
+     */
+    private void slideWindow() throws IOException {
+        final int shift = tokenizedOffset - blockBase;
+        System.arraycopy(block.chars, shift, block.chars, 0, block.length - shift);
+        block.length -= shift;
+        blockBase = tokenizedOffset;
+        readBlock();
+    }
+
+    private void readBlock() throws IOException {
+        final int capacity = windowSize > 0 ? Math.max(windowSize, 2 * (getMaxKeyLength() + n)) : Integer.MAX_VALUE;
+        while (block.length < capacity) {
+            if (!fillReadBuffer()) {
+                blockComplete = true;
+                return;
+            }
+            final int start = readBufferIndex;
+            final int limit = (int) Math.min(readBufferLen, (long) start + capacity - block.length);
+            while (readBufferIndex < limit && !isDelimiter(readBuffer[readBufferIndex])) {
+                readBufferIndex++;
+            }
+            final int length = readBufferIndex - start;
+            block.chars = ArrayUtil.grow(block.chars, block.length + length);
+            System.arraycopy(readBuffer, start, block.chars, block.length, length);
+            block.length += length;
+            nextBlkStart += length;
+            if (readBufferIndex < limit) {
+                // the delimiter that ends the block
+                readBufferIndex++;
+                nextBlkStart++;
+                blockComplete = true;
+                return;
             }
-            readBufferIndex = 0;
         }
-        final int c = readBuffer[readBufferIndex++];
-        nextBlkStart++;
-        return c;
+        blockComplete = false;
+    }
+
+    private boolean fillReadBuffer() throws IOException {
+        if (readBufferIndex < readBufferLen) {
+            return true;
+        }
+        if (exhausted) {
+            return false;
+        }
+        readBufferLen = input.read(readBuffer);
+        if (readBufferLen == -1) {
+            exhausted = true;
+            return false;
+        }
+        readBufferIndex = 0;
+        return true;
     }
 
     boolean isDelimiter(final int c) {
-        return delimiters.indexOf(c) >= 0;
+        return delimiters.contains(c);
     }
 
-    static class MyToken {
-        final String word;
+    /**
+     * A synonym map and the state to look up its FST.
+     */
+    static final class SynonymSource {
+        // null unless the map can be reloaded
+        private final SynonymLoader loader;
+
+        private long generation;
+
+        SynonymMap synonymMap;
 
-        final int startOffset, endOffset, posInc, seq;
+        // releases the mapped file of an artifact synonymMap
+        private Runnable releaseSynonymMap;
 
-        final BytesRef output;
+        // the output words of synonymMap by ord, or null to decode them on each hit
+        char[][] words;
 
-        public MyToken(final char[] key, final int startOffset, final int endOffset, final int posInc, final BytesRef output,
-                final boolean ignoreCase) {
-            this.word = ignoreCase ? new String(key, startOffset, endOffset - startOffset).toLowerCase()
-                    : new String(key, startOffset, endOffset - startOffset);
-            this.startOffset = startOffset;
-            this.endOffset = endOffset;
-            this.posInc = posInc;
-            this.output = output;
-            this.seq = 0; // zero for seq means that this token is the original of synonyms
+        private FST<BytesRef> fst;
+
+        private FST.BytesReader fstReader;
+
+        private final FST.Arc<BytesRef> scratchArc = new FST.Arc<>();
+
+        private final String matcherType;
+
+        // null to walk the FST
+        private SynonymMatcher matcher;
+
+        private int[] matchEnds = new int[64];
+
+        private int[] matchStates = new int[64];
+
+        private BytesRef fstMatchOutput;
+
+        // in chars, or -1 until it is needed
+        private int maxKeyLength = -1;
+
+        int longestMatchEndOffset;
+
+        SynonymSource(final SynonymLoader loader, final String matcherType) {
+            this.matcherType = matcherType;
+            if (loader != null && loader.isReloadable()) {
+                this.loader = loader;
+                generation = loader.getGeneration();
+            } else {
+                this.loader = null;
+            }
+            if (loader != null) {
+                final SynonymMap map = loader.getSynonymMap();
+                if (map != null && map.fst != null) {
+                    loadSynonymMap(loader);
+                }
+            }
         }
 
-        public MyToken(final String word, final int startOffset, final int endOffset, final int posInc) {
-            this(word, startOffset, endOffset, posInc, Integer.MAX_VALUE); // Integer.MAX_VALUE for seq means unused
+        /**
+         * Switches to the current map of the loader, or to no map if it has none, and returns true if the map changed.
+         */
+        private boolean loadSynonymMap(final SynonymLoader loader) {
+            while (true) {
+                final SynonymMap map = loader.getSynonymMap();
+                if (map == null) {
+                    if (synonymMap == null) {
+                        return false;
+                    }
+                    setSynonymMap(null, null);
+                    return true;
+                }
+                if (map.fst == null) {
+                    throw new IllegalArgumentException("fst must be non-null");
+                }
+                final Runnable release = SynonymMapArtifact.retain(this, map);
+                if (release != null) {
+                    setSynonymMap(map, release);
+                    return true;
+                }
+                // the map was closed after it was replaced, unless the loader is closed
+                if (loader.getSynonymMap() == map) {
+                    throw new IllegalStateException("The synonym map is closed.");
+                }
+            }
         }
 
-        public MyToken(final String word, final int startOffset, final int endOffset, final int posInc, final int seq) {
-            this.word = word;
-            this.startOffset = startOffset;
-            this.endOffset = endOffset;
-            this.posInc = posInc;
-            this.output = null; // means unused
-            this.seq = seq;
+        private void setSynonymMap(final SynonymMap map, final Runnable release) {
+            if (releaseSynonymMap != null) {
+                releaseSynonymMap.run();
+            }
+            releaseSynonymMap = release;
+            synonymMap = map;
+            maxKeyLength = -1;
+            if (map == null) {
+                words = null;
+                fst = null;
+                fstReader = null;
+                matcher = null;
+                return;
+            }
+            words = DecodedSynonymWords.get(map);
+            fst = map.fst;
+            fstReader = fst.getBytesReader();
+            matcher = SynonymMatcher.isEnabled(matcherType, map) ? SynonymMatcher.get(map) : null;
         }
 
-        public boolean identical(final MyToken o) {
-            if ((o.posInc != 0) || !word.equals(o.word) || (startOffset != o.startOffset) || (endOffset != o.endOffset)) {
+        /**
+         * Switches to a newly loaded map, and returns true if it did.
+         */
+        boolean refresh() {
+            if (loader == null || !loader.isUpdate(generation)) {
                 return false;
             }
-            return true;
+            generation = loader.getGeneration();
+            return loadSynonymMap(loader);
         }
 
-        @Override
-        public String toString() {
-            final StringBuilder sb = new StringBuilder();
-            sb.append(word).append(',').append(startOffset).append(',').append(endOffset).append(',').append(posInc);
-            return sb.toString();
+        /**
+         * Finds the longest matches at all positions of a text if this source has a matcher.
+         */
+        void findMatches(final char[] text, final int offset, final int length, final boolean ignoreCase) {
+            if (matcher != null) {
+                matchEnds = ArrayUtil.grow(matchEnds, length);
+                matchStates = ArrayUtil.grow(matchStates, length);
+                matcher.findLongestMatches(text, offset, length, ignoreCase, matchEnds, matchStates);
+            }
         }
 
-        @Override
-        public boolean equals(final Object other) {
-            if (other == null || !(other instanceof MyToken)) {
-                return false;
+        int getMaxKeyLength() {
+            if (maxKeyLength == -1) {
+                maxKeyLength = matcher != null ? matcher.getMaxKeyLength() : SynonymMatcher.getMaxKeyLength(synonymMap);
             }
-            final MyToken o = (MyToken) other;
-            if (!word.equals(o.word) || (startOffset != o.startOffset) || (endOffset != o.endOffset) || (posInc != o.posInc)) {
-                return false;
+            return maxKeyLength;
+        }
+
+        /**
+         * Returns the end of the longest match at {@code start}, or -1.
+         */
+        int match(final char[] text, final int length, final int start, final boolean ignoreCase) throws IOException {
+            if (matcher != null) {
+                return matchEnds[start] > start ? matchEnds[start] : -1;
             }
-            return true;
+            fstMatchOutput = getLongestMatchOutput(text, length, start, ignoreCase);
+            return fstMatchOutput != null ? longestMatchEndOffset : -1;
         }
 
-        @Override
-        public int hashCode() {
-            return word.hashCode() + posInc << 30 + startOffset << 15 + endOffset;
+        /**
+         * Returns the output of the last match found at {@code start}.
+         */
+        BytesRef getMatchOutput(final int start) {
+            return matcher != null ? matcher.getOutput(matchStates[start]) : fstMatchOutput;
+        }
+
+        private BytesRef getLongestMatchOutput(final char[] src, final int length, final int start, final boolean ignoreCase)
+                throws IOException {
+            BytesRef pendingOutput = fst.outputs.getNoOutput();
+            fst.getFirstArc(scratchArc);
+            BytesRef matchOutput = null;
+
+            int index = 0;
+            while (start + index < length) {
+                final int codePoint = Character.codePointAt(src, start + index, length);
+                if (fst.findTargetArc(ignoreCase ? Character.toLowerCase(codePoint) : codePoint, scratchArc, scratchArc,
+                        fstReader) == null) {
+                    return matchOutput;
+                }
+
+                pendingOutput = fst.outputs.add(pendingOutput, scratchArc.output());
+
+                if (scratchArc.isFinal()) {
+                    matchOutput = fst.outputs.add(pendingOutput, scratchArc.nextFinalOutput());
+                    longestMatchEndOffset = start + index + Character.charCount(codePoint);
+                }
+
+                index += Character.charCount(codePoint);
+            }
+
+            return matchOutput;
         }
     }
 
@@ -454,38 +797,140 @@ public final class NGramSynonymTokenizer extends Tokenizer {
       }
       */
 
-    static class MyTokensComparator implements Comparator<MyToken> {
-        @Override
-        public int compare(final MyToken t1, final MyToken t2) {
-            if (t1.startOffset < t2.startOffset) {
-                return -1;
+    /**
+     * Tokens of a block in parallel arrays, polled in the order of start offset, end offset,
+     * descending position increment and sequence.
+     * The term of a token is its span of the block, or a span of {@link #terms}.
+     * The tokens are added almost in order, so they are counting-sorted by start offset and then
+     * insertion-sorted, which takes linear time because only a few tokens share a start offset.
+     */
+    static final class TokenBuffer {
+        int size;
+
+        int[] startOffsets = new int[64];
+
+        int[] endOffsets = new int[64];
+
+        int[] posIncs = new int[64];
+
+        int[] seqs = new int[64];
+
+        // offset in terms, or -1 for the span of the block
+        int[] termOffsets = new int[64];
+
+        int[] termLengths = new int[64];
+
+        char[] terms = new char[256];
+
+        private int termsLength;
+
+        // token indexes in the order to poll
+        private int[] order = new int[64];
+
+        private int[] counts = new int[64];
+
+        private int next;
+
+        private boolean sorted;
+
+        void clear() {
+            size = 0;
+            termsLength = 0;
+            next = 0;
+            sorted = false;
+        }
+
+        int add(final int startOffset, final int endOffset, final int posInc, final int seq) {
+            if (size == startOffsets.length) {
+                final int newSize = ArrayUtil.oversize(size + 1, Integer.BYTES);
+                startOffsets = Arrays.copyOf(startOffsets, newSize);
+                endOffsets = Arrays.copyOf(endOffsets, newSize);
+                posIncs = Arrays.copyOf(posIncs, newSize);
+                seqs = Arrays.copyOf(seqs, newSize);
+                termOffsets = Arrays.copyOf(termOffsets, newSize);
+                termLengths = Arrays.copyOf(termLengths, newSize);
+                order = Arrays.copyOf(order, newSize);
             }
-            if (t1.startOffset > t2.startOffset) {
-                return 1;
+            final int token = size++;
+            startOffsets[token] = startOffset;
+            endOffsets[token] = endOffset;
+            posIncs[token] = posInc;
+            seqs[token] = seq;
+            termOffsets[token] = -1;
+            termLengths[token] = endOffset - startOffset;
+            sorted = false;
+            return token;
+        }
+
+        int add(final int startOffset, final int endOffset, final int posInc, final int seq, final char[] term, final int offset,
+                final int length) {
+            terms = ArrayUtil.grow(terms, termsLength + length);
+            System.arraycopy(term, offset, terms, termsLength, length);
+            final int token = add(startOffset, endOffset, posInc, seq);
+            termOffsets[token] = termsLength;
+            termLengths[token] = length;
+            termsLength += length;
+            return token;
+        }
+
+        /**
+         * Returns the index of the next token, or -1. No token can be added while polling.
+         */
+        int poll() {
+            if (!sorted) {
+                sort();
             }
+            return next < size ? order[next++] : -1;
+        }
 
-            if (t1.endOffset < t2.endOffset) {
-                return -1;
+        private void sort() {
+            int minStartOffset = Integer.MAX_VALUE;
+            int maxStartOffset = 0;
+            for (int token = 0; token < size; token++) {
+                minStartOffset = Math.min(minStartOffset, startOffsets[token]);
+                maxStartOffset = Math.max(maxStartOffset, startOffsets[token]);
             }
-            if (t1.endOffset > t2.endOffset) {
-                return 1;
+            final int range = size > 0 ? maxStartOffset - minStartOffset + 1 : 0;
+            counts = ArrayUtil.grow(counts, range + 1);
+            Arrays.fill(counts, 0, range + 1, 0);
+            for (int token = 0; token < size; token++) {
+                counts[startOffsets[token] - minStartOffset + 1]++;
             }
-
-            if (t1.posInc > t2.posInc) {
-                return -1;
+            for (int i = 1; i <= range; i++) {
+                counts[i] += counts[i - 1];
+            }
+            for (int token = 0; token < size; token++) {
+                order[counts[startOffsets[token] - minStartOffset]++] = token;
             }
-            if (t1.posInc < t2.posInc) {
-                return 1;
+            // tokens never move past a token with another start offset
+            for (int i = 1; i < size; i++) {
+                final int token = order[i];
+                int j = i - 1;
+                while (j >= 0 && lessThan(token, order[j])) {
+                    order[j + 1] = order[j];
+                    j--;
+                }
+                order[j + 1] = token;
             }
+            next = 0;
+            sorted = true;
+        }
 
-            if (t1.seq < t2.seq) {
-                return -1;
+        // the earlier token first on a tie
+        private boolean lessThan(final int t1, final int t2) {
+            if (startOffsets[t1] != startOffsets[t2]) {
+                return startOffsets[t1] < startOffsets[t2];
             }
-            if (t1.seq > t2.seq) {
-                return 1;
+            if (endOffsets[t1] != endOffsets[t2]) {
+                return endOffsets[t1] < endOffsets[t2];
             }
-
-            return -1;
+            if (posIncs[t1] != posIncs[t2]) {
+                return posIncs[t1] > posIncs[t2];
+            }
+            if (seqs[t1] != seqs[t2]) {
+                return seqs[t1] < seqs[t2];
+            }
+            return t1 < t2;
         }
     }
 }
\ No newline at end of file
@@ -1,5 +1,7 @@
 package org.codelibs.fesen.extension.analysis;
 
+import java.util.Collections;
+
 import org.apache.lucene.analysis.Tokenizer;
 import org.codelibs.fesen.common.settings.Settings;
 import org.codelibs.fesen.env.Environment;
@@ -15,23 +17,54 @@ public final class NGramSynonymTokenizerFactory extends AbstractTokenizerFactory
 
     private final int n;
 
-    private final String delimiters;
+    private final DelimiterTable delimiters;
 
     private final boolean expand;
 
+    // null to choose by the map
+    private final String matcherType;
+
+    private final int windowSize;
+
+    private final boolean coveringGrams;
+
     private SynonymLoader synonymLoader = null;
 
+    private SynonymLoader overlayLoader = null;
+
     public NGramSynonymTokenizerFactory(final IndexSettings indexSettings, final Environment env, final String name,
             final Settings settings) {
         super(indexSettings, settings, name);
         ignoreCase = settings.getAsBoolean("ignore_case", true);
         n = settings.getAsInt("n", NGramSynonymTokenizer.DEFAULT_N_SIZE);
-        delimiters = settings.get("delimiters", NGramSynonymTokenizer.DEFAULT_DELIMITERS);
+        delimiters = DelimiterTable.of(settings.get("delimiters", NGramSynonymTokenizer.DEFAULT_DELIMITERS),
+                settings.getAsList("delimiter_classes", Collections.emptyList()));
         expand = settings.getAsBoolean("expand", true);
+        matcherType = settings.get("synonym_matcher");
+        if (matcherType != null && !"automaton".equals(matcherType) && !"fst".equals(matcherType)) {
+            throw new IllegalArgumentException("Unknown synonym_matcher: " + matcherType);
+        }
+        windowSize = settings.getAsInt("block_window_size", 0);
+        final String queryMode = settings.get("query_mode", "all");
+        if (!"all".equals(queryMode) && !"covering".equals(queryMode)) {
+            throw new IllegalArgumentException("Unknown query_mode: " + queryMode);
+        }
+        coveringGrams = "covering".equals(queryMode);
 
         settings.getAsBoolean("expand_ngram", false); // TODO remove
 
         synonymLoader = new SynonymLoader(env, settings, expand, SynonymLoader.getAnalyzer(ignoreCase));
+        SharedResourceRegistry.registerCleanup(this, index(), synonymLoader::close);
+
+        final String overlayPath = settings.get("synonyms_overlay_path");
+        if (overlayPath != null) {
+            // the overlay is small and edited often, so it is always watched
+            final Settings overlaySettings =
+                    Settings.builder().put(settings.filter(key -> !"synonyms".equals(key) && !key.startsWith("synonyms.")))
+                            .put("synonyms_path", overlayPath).put("dynamic_reload", true).put("synonyms_artifact", false).build();
+            overlayLoader = new SynonymLoader(env, overlaySettings, expand, SynonymLoader.getAnalyzer(ignoreCase));
+            SharedResourceRegistry.registerCleanup(this, index(), overlayLoader::close);
+        }
         if (synonymLoader.getSynonymMap() == null) {
             if (settings.getAsList("synonyms", null) != null) {
                 logger.warn("synonyms values are empty.");
@@ -45,6 +78,7 @@ public final class NGramSynonymTokenizerFactory extends AbstractTokenizerFactory
 
     @Override
     public Tokenizer create() {
-        return new NGramSynonymTokenizer(n, delimiters, expand, ignoreCase, synonymLoader);
+        return new NGramSynonymTokenizer(n, delimiters, expand, ignoreCase, synonymLoader, overlayLoader, matcherType, windowSize,
+                coveringGrams);
     }
 }
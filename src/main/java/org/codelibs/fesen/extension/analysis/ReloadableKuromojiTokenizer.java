@@ -0,0 +1,496 @@
+/*
+ * Copyright 2009-2014 the CodeLibs Project and the Others.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND,
+ * either express or implied. See the License for the specific language
+ * governing permissions and limitations under the License.
+ */
+
+package org.codelibs.fesen.extension.analysis;
+
+import java.io.CharArrayReader;
+import java.io.IOException;
+import java.io.Reader;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.function.ToIntFunction;
+
+import org.apache.lucene.analysis.Tokenizer;
+import org.apache.lucene.analysis.ja.JapaneseTokenizer;
+import org.apache.lucene.analysis.ja.JapaneseTokenizer.Mode;
+import org.apache.lucene.analysis.ja.dict.UserDictionary;
+import org.apache.lucene.analysis.tokenattributes.OffsetAttribute;
+import org.apache.lucene.util.ArrayUtil;
+import org.apache.lucene.util.Attribute;
+import org.apache.lucene.util.AttributeFactory;
+import org.apache.lucene.util.AttributeImpl;
+
+/**
+ * Japanese tokenizer that follows the snapshots of a {@link ReloadableUserDictionary}.
+ * The Viterbi segmentation is done by a {@link JapaneseTokenizer} which is created with
+ * this tokenizer's attribute instances, so tokens are produced directly into this stream.
+ * When the dictionary generation changes, the next {@link #reset()} replaces that tokenizer.
+ * With a {@link SegmentationCache}, short inputs are looked up in the cache first and
+ * the cached token states are replayed instead of running the segmentation again.
+ * When a parallel threshold is set, inputs of at least that length are split after sentence
+ * boundaries and the chunks are tokenized on {@link AnalysisExecutors#tokenizeExecutor()}.
+ * When a lattice window is set, the input is passed to the Viterbi segmentation in {@link LatticeWindow}s.
+ * With the script fast path, runs of non-Japanese characters that no dictionary word overlaps are tokenized
+ * without the Viterbi segmentation (see {@link ScriptRunSegmenter}).
+ */
+public final class ReloadableKuromojiTokenizer extends Tokenizer {
+
+    private static final int INITIAL_BUFFER_SIZE = 1024;
+
+    private static final int MAX_RETAINED_BUFFER_SIZE = 64 * 1024;
+
+    private final ReloadableUserDictionary userDictionary;
+
+    private final boolean discardPunctuation;
+
+    private final Mode mode;
+
+    private final ToIntFunction<ReloadableUserDictionary.Snapshot> nBestCost;
+
+    private final SegmentationCache segmentationCache;
+
+    private final int parallelThreshold;
+
+    private final int parallelChunkSize;
+
+    private final int latticeWindowSize;
+
+    private final LatticeWindow latticeWindow;
+
+    private final boolean scriptFastPath;
+
+    private final AttributeFactory sharedAttributeFactory = new AttributeFactory() {
+        @Override
+        public AttributeImpl createAttributeInstance(final Class<? extends Attribute> attClass) {
+            return (AttributeImpl) addAttribute(attClass);
+        }
+    };
+
+    private final OffsetAttribute offsetAtt = addAttribute(OffsetAttribute.class);
+
+    private final ScriptRunSegmenter scriptRuns;
+
+    // longer inputs are not buffered for the script fast path
+    private final int scriptFastPathMaxLength;
+
+    // true if the current input is tokenized by scriptRuns
+    private boolean inScriptRuns;
+
+    private JapaneseTokenizer tokenizer;
+
+    private UserDictionary tokenizerDictionary;
+
+    private int tokenizerNBestCost;
+
+    private long generation;
+
+    private char[] buffer;
+
+    // offsets of the delegate are not corrected because it does not read this input directly
+    private boolean correctOffsets;
+
+    private String recordingText;
+
+    private List<State> recordingStates;
+
+    private SegmentationCache.Tokens replayTokens;
+
+    private int replayIndex;
+
+    private int replayBase;
+
+    private ArrayDeque<Chunk> chunks;
+
+    private char[] chunkText;
+
+    private int chunkTextLength;
+
+    private int nextChunkStart;
+
+    public ReloadableKuromojiTokenizer(final ReloadableUserDictionary userDictionary, final boolean discardPunctuation, final Mode mode,
+            final ToIntFunction<ReloadableUserDictionary.Snapshot> nBestCost) {
+        this(userDictionary, discardPunctuation, mode, nBestCost, null, 0, 0, 0, false);
+    }
+
+    public ReloadableKuromojiTokenizer(final ReloadableUserDictionary userDictionary, final boolean discardPunctuation, final Mode mode,
+            final ToIntFunction<ReloadableUserDictionary.Snapshot> nBestCost, final SegmentationCache segmentationCache,
+            final int parallelThreshold, final int parallelChunkSize, final int latticeWindowSize, final boolean scriptFastPath) {
+        this.userDictionary = userDictionary;
+        this.discardPunctuation = discardPunctuation;
+        this.mode = mode;
+        this.nBestCost = nBestCost;
+        this.segmentationCache = segmentationCache;
+        this.parallelThreshold = parallelThreshold;
+        this.parallelChunkSize = parallelChunkSize;
+        this.latticeWindowSize = latticeWindowSize;
+        latticeWindow = latticeWindowSize > 0 ? new LatticeWindow(latticeWindowSize) : null;
+        this.scriptFastPath = scriptFastPath;
+        scriptRuns = scriptFastPath ? new ScriptRunSegmenter(this, discardPunctuation, mode, latticeWindow) : null;
+        scriptFastPathMaxLength = latticeWindowSize > 0 ? latticeWindowSize : MAX_RETAINED_BUFFER_SIZE;
+        final ReloadableUserDictionary.Snapshot snapshot = userDictionary.getSnapshot();
+        tokenizer = createTokenizer(snapshot);
+        generation = snapshot.getGeneration();
+    }
+
+    private JapaneseTokenizer createTokenizer(final ReloadableUserDictionary.Snapshot snapshot) {
+        tokenizerDictionary = snapshot.getUserDictionary();
+        tokenizerNBestCost = nBestCost.applyAsInt(snapshot);
+        final JapaneseTokenizer t = new JapaneseTokenizer(sharedAttributeFactory, tokenizerDictionary, discardPunctuation, mode);
+        t.setNBestCost(tokenizerNBestCost);
+        return t;
+    }
+
+    @Override
+    public void reset() throws IOException {
+        super.reset();
+        final ReloadableUserDictionary.Snapshot snapshot = userDictionary.getSnapshot();
+        if (snapshot.getGeneration() != generation) {
+            if (snapshot.getUserDictionary() != null) {
+                tokenizer = createTokenizer(snapshot);
+            }
+            generation = snapshot.getGeneration();
+        }
+
+        clearReplay();
+        if (segmentationCache == null && parallelThreshold <= 0 && scriptRuns == null) {
+            correctOffsets = latticeWindow != null;
+            startTokenizer(input);
+            return;
+        }
+
+        correctOffsets = true;
+        if (buffer != null && buffer.length > MAX_RETAINED_BUFFER_SIZE) {
+            buffer = null;
+        }
+        final int limit;
+        if (parallelThreshold > 0) {
+            limit = Integer.MAX_VALUE;
+        } else {
+            // the buffer is bounded by the cache and the fast path, and a longer input is read from the reader
+            limit = Math.max(segmentationCache != null ? segmentationCache.getMaxLength() + 1 : 0,
+                    scriptRuns != null ? scriptFastPathMaxLength + 1 : 0);
+        }
+        final int length = fill(limit);
+        if (segmentationCache != null && length <= segmentationCache.getMaxLength()) {
+            final String text = new String(buffer, 0, length);
+            final SegmentationCache.Tokens cached = segmentationCache.get(text, generation);
+            if (cached != null) {
+                startReplay(cached, 0);
+                return;
+            }
+            recordingText = text;
+            recordingStates = new ArrayList<>();
+            startTokenizer(buffer, length);
+        } else if (parallelThreshold > 0 && length >= parallelThreshold) {
+            startChunks(length);
+        } else if (parallelThreshold > 0 || scriptRuns != null && length <= scriptFastPathMaxLength) {
+            startTokenizer(buffer, length);
+        } else {
+            startTokenizer(new PrefixedReader(buffer, length, input));
+        }
+    }
+
+    private void startTokenizer(final char[] text, final int length) throws IOException {
+        if (scriptRuns != null) {
+            inScriptRuns = true;
+            scriptRuns.reset(text, 0, length, tokenizerDictionary, tokenizerNBestCost);
+        } else {
+            startTokenizer(new CharArrayReader(text, 0, length));
+        }
+    }
+
+    private void startTokenizer(final Reader reader) throws IOException {
+        inScriptRuns = false;
+        if (latticeWindow != null) {
+            latticeWindow.reset(tokenizer, reader);
+        } else {
+            tokenizer.setReader(reader);
+            tokenizer.reset();
+        }
+    }
+
+    @Override
+    public boolean incrementToken() throws IOException {
+        if (replayTokens != null) {
+            while (replayIndex >= replayTokens.states.length) {
+                if (!nextChunk()) {
+                    return false;
+                }
+            }
+            clearAttributes();
+            restoreState(replayTokens.states[replayIndex++]);
+            offsetAtt.setOffset(correctOffset(replayBase + offsetAtt.startOffset()), correctOffset(replayBase + offsetAtt.endOffset()));
+            return true;
+        }
+
+        if (!nextToken()) {
+            return false;
+        }
+        if (recordingStates != null) {
+            recordingStates.add(captureState());
+        }
+        if (correctOffsets) {
+            offsetAtt.setOffset(correctOffset(offsetAtt.startOffset()), correctOffset(offsetAtt.endOffset()));
+        }
+        return true;
+    }
+
+    private boolean nextToken() throws IOException {
+        if (inScriptRuns) {
+            return scriptRuns.incrementToken(tokenizer);
+        }
+        if (latticeWindow != null) {
+            return latticeWindow.incrementToken(tokenizer, offsetAtt);
+        }
+        return tokenizer.incrementToken();
+    }
+
+    @Override
+    public void end() throws IOException {
+        final int finalOffset;
+        if (replayTokens != null) {
+            super.end();
+            finalOffset = replayBase + replayTokens.finalOffset;
+        } else {
+            if (inScriptRuns) {
+                super.end();
+                finalOffset = scriptRuns.getFinalOffset();
+            } else if (latticeWindow != null) {
+                // the window has ended its last input
+                super.end();
+                finalOffset = latticeWindow.getFinalOffset();
+            } else {
+                tokenizer.end();
+                if (!correctOffsets) {
+                    return;
+                }
+                finalOffset = offsetAtt.endOffset();
+            }
+            if (recordingStates != null) {
+                segmentationCache.put(recordingText, generation,
+                        new SegmentationCache.Tokens(recordingStates.toArray(new State[recordingStates.size()]), finalOffset));
+                recordingStates = null;
+            }
+        }
+        final int offset = correctOffset(finalOffset);
+        offsetAtt.setOffset(offset, offset);
+    }
+
+    @Override
+    public void close() throws IOException {
+        clearReplay();
+        tokenizer.close();
+        super.close();
+    }
+
+    private void clearReplay() {
+        recordingText = null;
+        recordingStates = null;
+        replayTokens = null;
+        if (chunks != null) {
+            for (final Chunk chunk : chunks) {
+                chunk.tokens.cancel(false);
+            }
+            chunks = null;
+        }
+        chunkText = null;
+    }
+
+    private void startReplay(final SegmentationCache.Tokens tokens, final int base) {
+        replayTokens = tokens;
+        replayIndex = 0;
+        replayBase = base;
+    }
+
+    private void startChunks(final int length) {
+        // the buffer is read by the chunk tasks, so the next input gets a new one
+        chunkText = buffer;
+        chunkTextLength = length;
+        buffer = null;
+        nextChunkStart = 0;
+        chunks = new ArrayDeque<>();
+        final int maxPending = AnalysisExecutors.tokenizeExecutor().getParallelism() * 2;
+        while (chunks.size() < maxPending && submitChunk()) {
+            // keep the pool busy while the first chunks are consumed
+        }
+        startReplay(new SegmentationCache.Tokens(new State[0], 0), 0);
+    }
+
+    private boolean submitChunk() {
+        final int start = nextChunkStart;
+        if (start >= chunkTextLength) {
+            return false;
+        }
+        final int end = findChunkEnd(chunkText, start, chunkTextLength, parallelChunkSize);
+        nextChunkStart = end;
+        final char[] text = chunkText;
+        final UserDictionary dictionary = tokenizerDictionary;
+        final int cost = tokenizerNBestCost;
+        chunks.add(new Chunk(start, AnalysisExecutors.tokenizeExecutor().submit(() -> tokenizeChunk(dictionary, cost, text, start, end))));
+        return true;
+    }
+
+    private boolean nextChunk() throws IOException {
+        if (chunks == null || chunks.isEmpty()) {
+            return false;
+        }
+        final Chunk chunk = chunks.poll();
+        submitChunk();
+        try {
+            startReplay(chunk.tokens.get(), chunk.start);
+        } catch (final InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while tokenizing.", e);
+        } catch (final ExecutionException e) {
+            final Throwable cause = e.getCause();
+            if (cause instanceof IOException) {
+                throw (IOException) cause;
+            }
+            if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            }
+            throw new IOException("Failed to tokenize.", cause);
+        }
+        return true;
+    }
+
+    private SegmentationCache.Tokens tokenizeChunk(final UserDictionary dictionary, final int cost, final char[] text, final int start,
+            final int end) throws IOException {
+        try (JapaneseTokenizer t = new JapaneseTokenizer(dictionary, discardPunctuation, mode)) {
+            t.setNBestCost(cost);
+            final OffsetAttribute offset = t.getAttribute(OffsetAttribute.class);
+            final List<State> states = new ArrayList<>();
+            final int finalOffset;
+            final LatticeWindow window = latticeWindowSize > 0 ? new LatticeWindow(latticeWindowSize) : null;
+            if (scriptFastPath) {
+                final ScriptRunSegmenter segmenter = new ScriptRunSegmenter(t, discardPunctuation, mode, window);
+                segmenter.reset(text, start, end - start, dictionary, cost);
+                while (segmenter.incrementToken(t)) {
+                    states.add(t.captureState());
+                }
+                finalOffset = segmenter.getFinalOffset();
+            } else if (window != null) {
+                window.reset(t, new CharArrayReader(text, start, end - start));
+                while (window.incrementToken(t, offset)) {
+                    states.add(t.captureState());
+                }
+                finalOffset = window.getFinalOffset();
+            } else {
+                t.setReader(new CharArrayReader(text, start, end - start));
+                t.reset();
+                while (t.incrementToken()) {
+                    states.add(t.captureState());
+                }
+                t.end();
+                finalOffset = offset.endOffset();
+            }
+            return new SegmentationCache.Tokens(states.toArray(new State[states.size()]), finalOffset);
+        }
+    }
+
+    /**
+     * Returns the position after the first sentence boundary at or after {@code start + chunkSize},
+     * or {@code length} if there is none.
+     */
+    static int findChunkEnd(final char[] text, final int start, final int length, final int chunkSize) {
+        for (int i = start + chunkSize - 1; i < length - 1; i++) {
+            if (isSentenceBoundary(text[i]) && !isSentenceBoundary(text[i + 1])) {
+                return i + 1;
+            }
+        }
+        return length;
+    }
+
+    private static boolean isSentenceBoundary(final char c) {
+        switch (c) {
+        case '。':
+        case '！':
+        case '？':
+        case '\n':
+        case '\r':
+            return true;
+        default:
+            return false;
+        }
+    }
+
+    private int fill(final int limit) throws IOException {
+        if (buffer == null) {
+            buffer = new char[Math.min(limit, INITIAL_BUFFER_SIZE)];
+        }
+        int length = 0;
+        while (length < limit) {
+            if (length == buffer.length) {
+                buffer = ArrayUtil.grow(buffer, length + 1);
+            }
+            final int n = input.read(buffer, length, Math.min(buffer.length, limit) - length);
+            if (n == -1) {
+                break;
+            }
+            length += n;
+        }
+        return length;
+    }
+
+    private static final class Chunk {
+        private final int start;
+
+        private final Future<SegmentationCache.Tokens> tokens;
+
+        Chunk(final int start, final Future<SegmentationCache.Tokens> tokens) {
+            this.start = start;
+            this.tokens = tokens;
+        }
+    }
+
+    /**
+     * Reader that returns the already consumed head of the input before the rest of it.
+     */
+    private static final class PrefixedReader extends Reader {
+        private final char[] prefix;
+
+        private final int prefixLength;
+
+        private final Reader reader;
+
+        private int pos;
+
+        PrefixedReader(final char[] prefix, final int prefixLength, final Reader reader) {
+            this.prefix = prefix;
+            this.prefixLength = prefixLength;
+            this.reader = reader;
+        }
+
+        @Override
+        public int read(final char[] cbuf, final int off, final int len) throws IOException {
+            if (pos < prefixLength) {
+                final int n = Math.min(len, prefixLength - pos);
+                System.arraycopy(prefix, pos, cbuf, off, n);
+                pos += n;
+                return n;
+            }
+            return reader.read(cbuf, off, len);
+        }
+
+        @Override
+        public void close() throws IOException {
+            // the input is closed by the outer tokenizer
+        }
+    }
+}
@@ -16,25 +16,9 @@
 
 package org.codelibs.fesen.extension.analysis;
 
-import java.io.File;
-import java.io.IOException;
-import java.io.Reader;
-import java.lang.reflect.Field;
-import java.nio.file.Path;
-import java.security.AccessController;
-import java.security.PrivilegedAction;
-import java.util.EnumMap;
-
 import org.apache.lucene.analysis.Tokenizer;
-import org.apache.lucene.analysis.ja.JapaneseTokenizer;
 import org.apache.lucene.analysis.ja.JapaneseTokenizer.Mode;
-import org.apache.lucene.analysis.ja.JapaneseTokenizer.Type;
-import org.apache.lucene.analysis.ja.dict.Dictionary;
-import org.apache.lucene.analysis.ja.dict.TokenInfoFST;
-import org.apache.lucene.analysis.ja.dict.UserDictionary;
-import org.apache.lucene.util.AttributeSource;
 import org.codelibs.fesen.common.settings.Settings;
-import org.codelibs.fesen.core.TimeValue;
 import org.codelibs.fesen.env.Environment;
 import org.codelibs.fesen.extension.kuromoji.index.analysis.KuromojiTokenizerFactory;
 import org.codelibs.fesen.index.IndexSettings;
@@ -42,216 +26,87 @@ import org.codelibs.fesen.index.analysis.AbstractTokenizerFactory;
 
 public class ReloadableKuromojiTokenizerFactory extends AbstractTokenizerFactory {
 
-    private static final boolean VERBOSE = false; // debug
-
-    protected static final Reader ILLEGAL_STATE_READER = new Reader() {
-        @Override
-        public int read(final char[] cbuf, final int off, final int len) {
-            throw new IllegalStateException("TokenStream contract violation: reset()/close() call missing, "
-                    + "reset() called multiple times, or subclass does not call super.reset(). "
-                    + "Please see Javadocs of TokenStream class for more information about the correct consuming workflow.");
-        }
-
-        @Override
-        public void close() {
-        }
-    };
-
-    protected final Field inputPendingField;
+    private final ReloadableUserDictionary userDictionary;
 
-    protected final Field userDictionaryField;
-
-    protected final Field userFSTField;
-
-    protected final Field userFSTReaderField;
-
-    protected final Field dictionaryMapField;
+    private final Mode mode;
 
-    private final Environment env;
+    private final boolean discartPunctuation;
 
-    private final Settings settings;
+    private final int nBestCost;
 
-    private File reloadableFile = null;
+    private final String nBestExamples;
 
-    protected volatile long dictionaryTimestamp;
+    private final SegmentationCache segmentationCache;
 
-    private volatile long lastChecked;
+    private final int parallelThreshold;
 
-    private long reloadInterval;
+    private final int parallelChunkSize;
 
-    private volatile UserDictionary userDictionary;
+    private final int maxLatticeWindow;
 
-    private final Mode mode;
+    private final boolean scriptFastPath;
 
-    private final boolean discartPunctuation;
+    private volatile NBestCost cachedNBestCost;
 
     public ReloadableKuromojiTokenizerFactory(final IndexSettings indexSettings, final Environment env, final String name,
             final Settings settings) {
         super(indexSettings, settings, name);
-        this.env = env;
-        this.settings = settings;
         mode = KuromojiTokenizerFactory.getMode(settings);
-        userDictionary = KuromojiTokenizerFactory.getUserDictionary(env, settings);
+        maxLatticeWindow = settings.getAsInt("max_lattice_window", 0);
+        if (maxLatticeWindow != 0 && (maxLatticeWindow < LatticeWindow.MIN_SIZE || maxLatticeWindow > LatticeWindow.MAX_SIZE)) {
+            throw new IllegalArgumentException("max_lattice_window must be 0 or between " + LatticeWindow.MIN_SIZE + " and "
+                    + LatticeWindow.MAX_SIZE + ": " + maxLatticeWindow);
+        }
+        userDictionary = new ReloadableUserDictionary(env, settings);
+        SharedResourceRegistry.registerCleanup(this, index(), userDictionary::close);
         discartPunctuation = settings.getAsBoolean("discard_punctuation", true);
-
-        inputPendingField = getAccessibleField(Tokenizer.class, "inputPending");
-        userDictionaryField = getAccessibleField(JapaneseTokenizer.class, "userDictionary");
-        userFSTField = getAccessibleField(JapaneseTokenizer.class, "userFST");
-        userFSTReaderField = getAccessibleField(JapaneseTokenizer.class, "userFSTReader");
-        dictionaryMapField = getAccessibleField(JapaneseTokenizer.class, "dictionaryMap");
-
-        dictionaryTimestamp = System.currentTimeMillis();
-
-        final String monitoringFilePath = settings.get("user_dictionary");
-        if (monitoringFilePath != null) {
-            final Path path = env.configFile().resolve(monitoringFilePath);
-
-            try {
-                final File file = path.toFile();
-                if (file.exists()) {
-                    reloadableFile = file;
-                    dictionaryTimestamp = reloadableFile.lastModified();
-
-                    reloadInterval = settings.getAsTime("reload_interval", TimeValue.timeValueMinutes(1)).getMillis();
-
-                    if (VERBOSE) {
-                        System.out.println("Check " + reloadableFile.getAbsolutePath() + " (interval: " + reloadInterval + "ms)");
-                    }
-                }
-            } catch (final Exception e) {
-                throw new IllegalArgumentException("Could not access " + monitoringFilePath, e);
-            }
+        nBestCost = settings.getAsInt(KuromojiTokenizerFactory.NBEST_COST, -1);
+        nBestExamples = settings.get(KuromojiTokenizerFactory.NBEST_EXAMPLES);
+        getNBestCost(userDictionary.getSnapshot());
+
+        final int cacheSize = settings.getAsInt("segmentation_cache_size", 0);
+        if (cacheSize > 0) {
+            segmentationCache = new SegmentationCache(cacheSize, settings.getAsInt("segmentation_cache_max_length", 256));
+        } else {
+            segmentationCache = null;
         }
+        parallelThreshold = settings.getAsInt("parallel_threshold", 0);
+        parallelChunkSize = settings.getAsInt("parallel_chunk_size", 16 * 1024);
+        scriptFastPath = settings.getAsBoolean("script_fast_path", false);
 
+        if (userDictionary.isReloadable()) {
+            logger.debug("Watching {} for updates.", settings.get("user_dictionary"));
+        }
     }
 
     @Override
     public Tokenizer create() {
-        return new TokenizerWrapper();
+        return new ReloadableKuromojiTokenizer(userDictionary, discartPunctuation, mode, this::getNBestCost, segmentationCache,
+                parallelThreshold, parallelChunkSize, maxLatticeWindow, scriptFastPath);
     }
 
-    private void updateUserDictionary() {
-        if (reloadableFile != null && System.currentTimeMillis() - lastChecked > reloadInterval) {
-            lastChecked = System.currentTimeMillis();
-            final long timestamp = reloadableFile.lastModified();
-            if (timestamp != dictionaryTimestamp) {
-                synchronized (reloadableFile) {
-                    if (timestamp != dictionaryTimestamp) {
-                        userDictionary = KuromojiTokenizerFactory.getUserDictionary(env, settings);
-                        dictionaryTimestamp = timestamp;
-                    }
-                }
-            }
+    private int getNBestCost(final ReloadableUserDictionary.Snapshot snapshot) {
+        if (nBestExamples == null) {
+            return nBestCost;
         }
-    }
-
-    public final class TokenizerWrapper extends Tokenizer {
-
-        private final JapaneseTokenizer tokenizer;
-
-        private long tokenizerTimestamp;
-
-        TokenizerWrapper() {
-            tokenizerTimestamp = dictionaryTimestamp;
-            tokenizer = new JapaneseTokenizer(userDictionary, discartPunctuation, mode);
-
-            try {
-                final Field attributesField = getAccessibleField(AttributeSource.class, "attributes");
-                final Object attributesObj = attributesField.get(tokenizer);
-                attributesField.set(this, attributesObj);
-
-                final Field attributeImplsField = getAccessibleField(AttributeSource.class, "attributeImpls");
-                final Object attributeImplsObj = attributeImplsField.get(tokenizer);
-                attributeImplsField.set(this, attributeImplsObj);
-
-                final Field currentStateField = getAccessibleField(AttributeSource.class, "currentState");
-                final Object currentStateObj = currentStateField.get(tokenizer);
-                currentStateField.set(this, currentStateObj);
-            } catch (final Exception e) {
-                throw new IllegalStateException("Failed to update the tokenizer.", e);
-            }
-        }
-
-        @Override
-        public void close() throws IOException {
-            tokenizer.close();
-        }
-
-        @Override
-        public void reset() throws IOException {
-            updateUserDictionary();
-
-            if (dictionaryTimestamp > tokenizerTimestamp) {
-                if (VERBOSE) {
-                    System.out.println("Update KuromojiTokenizer (" + tokenizerTimestamp + "," + dictionaryTimestamp + ")");
-                }
-                if (userDictionary != null) {
-                    try {
-                        tokenizerTimestamp = dictionaryTimestamp;
-                        userDictionaryField.set(tokenizer, userDictionary);
-                        final TokenInfoFST userFst = userDictionary.getFST();
-                        userFSTField.set(tokenizer, userFst);
-                        userFSTReaderField.set(tokenizer, userFst.getBytesReader());
-                        @SuppressWarnings("unchecked")
-                        final EnumMap<Type, Dictionary> dictionaryMap = (EnumMap<Type, Dictionary>) dictionaryMapField.get(tokenizer);
-                        dictionaryMap.put(Type.USER, userDictionary);
-                    } catch (final Exception e) {
-                        throw new IllegalStateException("Failed to update the tokenizer.", e);
-                    }
-                }
-            }
-
-            final Reader inputPending = getInputPending();
-            if (inputPending != ILLEGAL_STATE_READER) {
-                tokenizer.setReader(inputPending);
-            }
-            tokenizer.reset();
-        }
-
-        @Override
-        public boolean incrementToken() throws IOException {
-            return tokenizer.incrementToken();
-        }
-
-        @Override
-        public void end() throws IOException {
-            tokenizer.end();
+        final NBestCost cached = cachedNBestCost;
+        if (cached != null && cached.generation == snapshot.getGeneration()) {
+            return cached.cost;
         }
+        final int cost =
+                KuromojiTokenizerFactory.calcNBestCost(snapshot.getUserDictionary(), discartPunctuation, mode, nBestCost, nBestExamples);
+        cachedNBestCost = new NBestCost(snapshot.getGeneration(), cost);
+        return cost;
+    }
 
-        @Override
-        public int hashCode() {
-            return tokenizer.hashCode();
-        }
+    private static final class NBestCost {
+        private final long generation;
 
-        @Override
-        public boolean equals(final Object obj) {
-            return tokenizer.equals(obj);
-        }
+        private final int cost;
 
-        @Override
-        public String toString() {
-            return tokenizer.toString();
+        NBestCost(final long generation, final int cost) {
+            this.generation = generation;
+            this.cost = cost;
         }
-
-        private Reader getInputPending() {
-            try {
-                return (Reader) inputPendingField.get(this);
-            } catch (final Exception e) {
-                return null;
-            }
-        }
-
-    }
-
-    private static Field getAccessibleField(final Class<?> clazz, final String name) {
-        return AccessController.doPrivileged((PrivilegedAction<Field>) () -> {
-            try {
-                final Field field = clazz.getDeclaredField(name);
-                field.setAccessible(true);
-                return field;
-            } catch (final Exception e) {
-                throw new IllegalArgumentException("Failed to load fields.", e);
-            }
-        });
     }
 }
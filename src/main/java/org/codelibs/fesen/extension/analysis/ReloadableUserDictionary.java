@@ -0,0 +1,235 @@
+package org.codelibs.fesen.extension.analysis;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.apache.lucene.analysis.ja.dict.UserDictionary;
+import org.codelibs.fesen.common.settings.Settings;
+import org.codelibs.fesen.core.TimeValue;
+import org.codelibs.fesen.env.Environment;
+import org.codelibs.fesen.extension.kuromoji.index.analysis.KuromojiTokenizerFactory;
+
+/**
+ * Holds the current {@link UserDictionary} of a reloadable_kuromoji tokenizer.
+ * When the dictionary file changes, a new dictionary is built on {@link AnalysisExecutors#reloadExecutor()}
+ * while tokenizers keep using the current one, and then published as a {@link Snapshot} with the next generation.
+ */
+public class ReloadableUserDictionary {
+
+    private static final Logger logger = LogManager.getLogger(ReloadableUserDictionary.class);
+
+    private static final SharedResourceRegistry<String, UserDictionary> USER_DICTIONARIES = new SharedResourceRegistry<>();
+
+    private final Environment env;
+
+    private final Settings settings;
+
+    // the snapshot holds the lease on its dictionary
+    private final AtomicReference<Snapshot> snapshot = new AtomicReference<>();
+
+    private final AtomicBoolean reloadPending = new AtomicBoolean(false);
+
+    // the CRC32C of the last change reported by the watcher
+    private volatile long latestChecksum;
+
+    private ResourceWatcher.Registration registration;
+
+    private final AtomicBoolean closed = new AtomicBoolean(false);
+
+    public ReloadableUserDictionary(final Environment env, final Settings settings) {
+        this.env = env;
+        this.settings = settings;
+
+        snapshot.set(acquireUserDictionary());
+
+        final String monitoringFilePath = settings.get("user_dictionary");
+        if (monitoringFilePath != null) {
+            final Path path = env.configFile().resolve(monitoringFilePath);
+            try {
+                if (path.toFile().exists()) {
+                    final long reloadInterval = settings.getAsTime("reload_interval", TimeValue.timeValueMinutes(1)).getMillis();
+                    registration = ResourceWatcher.getInstance().watch(path, reloadInterval, this::scheduleReload);
+                }
+            } catch (final Exception e) {
+                close();
+                throw new IllegalArgumentException("Could not access " + monitoringFilePath, e);
+            }
+        }
+    }
+
+    public Snapshot getSnapshot() {
+        return snapshot.get();
+    }
+
+    public boolean isReloadable() {
+        return registration != null;
+    }
+
+    void scheduleReload(final long checksum) {
+        latestChecksum = checksum;
+        if (reloadPending.compareAndSet(false, true)) {
+            AnalysisExecutors.reloadExecutor().execute(() -> {
+                reloadPending.set(false);
+                reload(latestChecksum);
+            });
+        }
+    }
+
+    void reload() {
+        final String filePath = settings.get("user_dictionary");
+        long checksum = -1;
+        if (filePath != null) {
+            try {
+                checksum = ContentDigest.of(env.configFile().resolve(filePath));
+            } catch (final IOException e) {
+                // reported below
+            }
+        }
+        latestChecksum = checksum;
+        reload(checksum);
+    }
+
+    /**
+     * Rebuilds the dictionary keyed by the CRC32C that {@link ResourceWatcher} already computed,
+     * so that the file is read once per change instead of once per index.
+     * No lock is held while the dictionary is built, so {@link #close()} never waits for a reload.
+     */
+    void reload(final long checksum) {
+        if (closed.get()) {
+            // a reload queued before close() must not acquire a lease that nothing releases
+            return;
+        }
+        final String key = getUserDictionaryKey(env, settings, checksum);
+        if (key == null) {
+            logger.warn("Could not read {}. The current dictionary is kept.", settings.get("user_dictionary"));
+            return;
+        }
+        final SharedResourceRegistry.Lease<UserDictionary> newLease;
+        try {
+            newLease = USER_DICTIONARIES.acquire(key, () -> KuromojiTokenizerFactory.getUserDictionary(env, settings));
+        } catch (final Exception e) {
+            logger.warn("Failed to reload {}. The current dictionary is kept.", settings.get("user_dictionary"), e);
+            return;
+        }
+
+        final UserDictionary userDictionary = newLease.get();
+        if (userDictionary == null) {
+            logger.warn("{} is empty. The current dictionary is kept.", settings.get("user_dictionary"));
+            newLease.release();
+            return;
+        }
+
+        while (true) {
+            if (checksum != latestChecksum) {
+                // the file was modified while it was read, so another reload is already scheduled
+                logger.debug("{} was modified during the reload.", settings.get("user_dictionary"));
+                newLease.release();
+                return;
+            }
+            final Snapshot current = snapshot.get();
+            if (userDictionary == current.userDictionary) {
+                // the current lease is on the same entry
+                newLease.release();
+                return;
+            }
+            final Snapshot next = new Snapshot(userDictionary, current.generation + 1, newLease);
+            if (snapshot.compareAndSet(current, next)) {
+                current.release();
+                if (closed.get()) {
+                    // closed while it was published, so close() may not have seen this lease
+                    next.release();
+                }
+                return;
+            }
+        }
+    }
+
+    public void close() {
+        closed.set(true);
+        if (registration != null) {
+            registration.cancel();
+        }
+        // a reload that publishes after this releases its own lease
+        final Snapshot current = snapshot.get();
+        if (current != null) {
+            current.release();
+        }
+    }
+
+    private Snapshot acquireUserDictionary() {
+        final String key = getUserDictionaryKey(env, settings);
+        if (key == null) {
+            return new Snapshot(KuromojiTokenizerFactory.getUserDictionary(env, settings), 0, null);
+        }
+        final SharedResourceRegistry.Lease<UserDictionary> newLease =
+                USER_DICTIONARIES.acquire(key, () -> KuromojiTokenizerFactory.getUserDictionary(env, settings));
+        return new Snapshot(newLease.get(), 0, newLease);
+    }
+
+    static String getUserDictionaryKey(final Environment env, final Settings settings) {
+        final String filePath = settings.get("user_dictionary");
+        if (filePath != null) {
+            try {
+                return getUserDictionaryKey(env, settings, ContentDigest.of(env.configFile().resolve(filePath)));
+            } catch (final IOException e) {
+                // the loader reports the failure
+                return null;
+            }
+        }
+        return getUserDictionaryKey(env, settings, -1);
+    }
+
+    private static String getUserDictionaryKey(final Environment env, final Settings settings, final long checksum) {
+        final String filePath = settings.get("user_dictionary");
+        if (filePath != null) {
+            if (checksum == -1) {
+                return null;
+            }
+            final Path path = env.configFile().resolve(filePath).toAbsolutePath().normalize();
+            return path + "@" + Long.toHexString(checksum);
+        }
+        final List<String> rules = settings.getAsList("user_dictionary_rules", null);
+        if (rules != null) {
+            return "rules@" + String.join("\n", rules);
+        }
+        return null;
+    }
+
+    /**
+     * An immutable user dictionary and its generation.
+     */
+    public static final class Snapshot {
+        final UserDictionary userDictionary;
+
+        final long generation;
+
+        // null if the dictionary is not shared
+        private final SharedResourceRegistry.Lease<UserDictionary> lease;
+
+        Snapshot(final UserDictionary userDictionary, final long generation, final SharedResourceRegistry.Lease<UserDictionary> lease) {
+            this.userDictionary = userDictionary;
+            this.generation = generation;
+            this.lease = lease;
+        }
+
+        // may be called more than once
+        void release() {
+            if (lease != null) {
+                lease.release();
+            }
+        }
+
+        public UserDictionary getUserDictionary() {
+            return userDictionary;
+        }
+
+        public long getGeneration() {
+            return generation;
+        }
+    }
+}
@@ -0,0 +1,322 @@
+package org.codelibs.fesen.extension.analysis;
+
+import static java.nio.file.StandardWatchEventKinds.ENTRY_CREATE;
+import static java.nio.file.StandardWatchEventKinds.ENTRY_DELETE;
+import static java.nio.file.StandardWatchEventKinds.ENTRY_MODIFY;
+import static java.nio.file.StandardWatchEventKinds.OVERFLOW;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.FileSystems;
+import java.nio.file.Path;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.security.AccessController;
+import java.security.PrivilegedAction;
+import java.security.PrivilegedActionException;
+import java.security.PrivilegedExceptionAction;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+/**
+ * Node-level watcher of analysis resource files.
+ * A single daemon thread waits on a {@link WatchService} and also polls each file at its
+ * reload interval, so that analysis threads never have to check the files themselves.
+ * A file whose size or modification time changed is only reported to its listeners when
+ * its CRC32C changed too, so touching a file does not rebuild anything.
+ * A file is checked once for all of its listeners, at the shortest of their intervals.
+ */
+public final class ResourceWatcher {
+
+    private static final Logger logger = LogManager.getLogger(ResourceWatcher.class);
+
+    private static final long MAX_WAIT = TimeUnit.SECONDS.toMillis(1);
+
+    // wait for a quiet period after a file event so that a file being written is not read half-way
+    private static final long SETTLE_TIME = TimeUnit.MILLISECONDS.toNanos(200);
+
+    private static final ResourceWatcher INSTANCE = new ResourceWatcher();
+
+    private final Map<Path, WatchedFile> files = new ConcurrentHashMap<>();
+
+    private final LongAdder performedReloads = new LongAdder();
+
+    private final LongAdder skippedReloads = new LongAdder();
+
+    private final Map<Path, WatchKey> watchKeys = new HashMap<>();
+
+    private WatchService watchService;
+
+    private Thread thread;
+
+    private ResourceWatcher() {
+    }
+
+    public static ResourceWatcher getInstance() {
+        return INSTANCE;
+    }
+
+    public synchronized Registration watch(final Path file, final long interval, final Listener listener) {
+        final Path path = file.toAbsolutePath().normalize();
+        start();
+        registerDirectory(path.getParent());
+        final WatchedFile watchedFile = files.computeIfAbsent(path, WatchedFile::new);
+        final Registration registration = new Registration(watchedFile, interval, listener);
+        watchedFile.add(registration);
+        return registration;
+    }
+
+    /**
+     * Returns the number of changes reported to listeners.
+     */
+    public long getPerformedReloadCount() {
+        return performedReloads.sum();
+    }
+
+    /**
+     * Returns the number of changes ignored because the content was unchanged.
+     */
+    public long getSkippedReloadCount() {
+        return skippedReloads.sum();
+    }
+
+    private synchronized void unwatch(final Registration registration) {
+        final WatchedFile watchedFile = registration.watchedFile;
+        if (!watchedFile.remove(registration) || !watchedFile.registrations.isEmpty()) {
+            return;
+        }
+        files.remove(watchedFile.file, watchedFile);
+        if (files.values().stream().noneMatch(f -> f.dir.equals(watchedFile.dir))) {
+            final WatchKey key = watchKeys.remove(watchedFile.dir);
+            if (key != null) {
+                key.cancel();
+            }
+        }
+    }
+
+    private void start() {
+        if (thread != null) {
+            return;
+        }
+        watchService = newWatchService();
+        thread = AccessController.doPrivileged((PrivilegedAction<Thread>) () -> {
+            final Thread t = new Thread(this::run, "analysis-extension-resource-watcher");
+            t.setDaemon(true);
+            t.start();
+            return t;
+        });
+    }
+
+    private static WatchService newWatchService() {
+        try {
+            return AccessController.doPrivileged((PrivilegedExceptionAction<WatchService>) () -> FileSystems.getDefault().newWatchService());
+        } catch (final PrivilegedActionException | UnsupportedOperationException | SecurityException e) {
+            logger.warn("WatchService is not available. Resources are checked by polling.", e);
+            return null;
+        }
+    }
+
+    private void registerDirectory(final Path dir) {
+        if (watchService == null || dir == null || watchKeys.containsKey(dir)) {
+            return;
+        }
+        try {
+            final WatchKey key = AccessController.doPrivileged(
+                    (PrivilegedExceptionAction<WatchKey>) () -> dir.register(watchService, ENTRY_CREATE, ENTRY_MODIFY, ENTRY_DELETE));
+            watchKeys.put(dir, key);
+        } catch (final PrivilegedActionException | SecurityException e) {
+            logger.warn("Could not watch {}. Resources in it are checked by polling.", dir, e);
+        }
+    }
+
+    private void run() {
+        while (true) {
+            try {
+                final long timeout = checkDueRegistrations();
+                if (watchService != null) {
+                    final WatchKey key = watchService.poll(timeout, TimeUnit.MILLISECONDS);
+                    if (key != null) {
+                        processEvents(key);
+                    }
+                } else {
+                    Thread.sleep(timeout);
+                }
+            } catch (final InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            } catch (final ClosedWatchServiceException e) {
+                return;
+            } catch (final Exception e) {
+                logger.warn("Failed to check resources.", e);
+            }
+        }
+    }
+
+    private long checkDueRegistrations() {
+        long timeout = MAX_WAIT;
+        final long now = System.nanoTime();
+        for (final WatchedFile watchedFile : files.values()) {
+            if (watchedFile.nextCheck - now <= 0) {
+                watchedFile.check();
+                watchedFile.nextCheck = now + TimeUnit.MILLISECONDS.toNanos(watchedFile.interval);
+            }
+            timeout = Math.min(timeout, TimeUnit.NANOSECONDS.toMillis(watchedFile.nextCheck - now));
+        }
+        return Math.max(timeout, 1);
+    }
+
+    private void processEvents(final WatchKey key) {
+        final Path dir = (Path) key.watchable();
+        final Set<Path> changedFiles = new HashSet<>();
+        boolean overflow = false;
+        for (final WatchEvent<?> event : key.pollEvents()) {
+            if (event.kind() == OVERFLOW) {
+                overflow = true;
+            } else {
+                changedFiles.add(dir.resolve((Path) event.context()));
+            }
+        }
+        key.reset();
+
+        final long now = System.nanoTime();
+        for (final WatchedFile watchedFile : files.values()) {
+            if (watchedFile.dir.equals(dir) && (overflow || changedFiles.contains(watchedFile.file))) {
+                watchedFile.nextCheck = now + SETTLE_TIME;
+            }
+        }
+    }
+
+    /**
+     * The state of a watched file, shared by all of its registrations.
+     */
+    private final class WatchedFile {
+        private final Path file;
+
+        private final Path dir;
+
+        private final List<Registration> registrations = new CopyOnWriteArrayList<>();
+
+        private volatile long interval = Long.MAX_VALUE;
+
+        private long lastModified;
+
+        private long length;
+
+        private long checksum;
+
+        private volatile long nextCheck;
+
+        WatchedFile(final Path file) {
+            this.file = file;
+            this.dir = file.getParent();
+            final File f = file.toFile();
+            lastModified = f.lastModified();
+            length = f.length();
+            checksum = checksum(file);
+        }
+
+        // called with the watcher locked
+        void add(final Registration registration) {
+            registrations.add(registration);
+            if (registration.interval < interval) {
+                interval = registration.interval;
+                nextCheck = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(interval);
+            }
+        }
+
+        // called with the watcher locked
+        boolean remove(final Registration registration) {
+            if (!registrations.remove(registration)) {
+                return false;
+            }
+            interval = registrations.stream().mapToLong(r -> r.interval).min().orElse(Long.MAX_VALUE);
+            return true;
+        }
+
+        void check() {
+            final File f = file.toFile();
+            final long modified = f.lastModified();
+            final long size = f.length();
+            if (modified == lastModified && size == length) {
+                return;
+            }
+            lastModified = modified;
+            length = size;
+            final long newChecksum = checksum(file);
+            if (newChecksum != -1 && newChecksum == checksum) {
+                skippedReloads.increment();
+                if (logger.isDebugEnabled()) {
+                    logger.debug("{} was touched but its content is unchanged. (performed: {}, skipped: {})", file,
+                            performedReloads.sum(), skippedReloads.sum());
+                }
+                return;
+            }
+            checksum = newChecksum;
+            performedReloads.increment();
+            if (logger.isDebugEnabled()) {
+                logger.debug("{} was changed. (performed: {}, skipped: {})", file, performedReloads.sum(), skippedReloads.sum());
+            }
+            for (final Registration registration : registrations) {
+                try {
+                    registration.listener.onChange(newChecksum);
+                } catch (final Exception e) {
+                    logger.warn("Failed to reload {}", file, e);
+                }
+            }
+        }
+    }
+
+    /**
+     * Receives the changes of a watched file.
+     */
+    @FunctionalInterface
+    public interface Listener {
+        /**
+         * Called on the watcher thread with the CRC32C of the new content, or -1 if the file could not be read.
+         */
+        void onChange(long checksum);
+    }
+
+    public final class Registration {
+        private final WatchedFile watchedFile;
+
+        private final long interval;
+
+        private final Listener listener;
+
+        Registration(final WatchedFile watchedFile, final long interval, final Listener listener) {
+            this.watchedFile = watchedFile;
+            this.interval = interval;
+            this.listener = listener;
+        }
+
+        public Path getFile() {
+            return watchedFile.file;
+        }
+
+        public void cancel() {
+            unwatch(this);
+        }
+    }
+
+    private static long checksum(final Path file) {
+        try {
+            return ContentDigest.of(file);
+        } catch (final IOException e) {
+            // a missing file is reported as a change
+            return -1;
+        }
+    }
+}
@@ -0,0 +1,578 @@
+package org.codelibs.fesen.extension.analysis;
+
+import java.io.CharArrayReader;
+import java.io.IOException;
+import java.util.Arrays;
+
+import org.apache.lucene.analysis.ja.JapaneseTokenizer;
+import org.apache.lucene.analysis.ja.JapaneseTokenizer.Mode;
+import org.apache.lucene.analysis.ja.Token;
+import org.apache.lucene.analysis.ja.dict.CharacterDefinition;
+import org.apache.lucene.analysis.ja.dict.ConnectionCosts;
+import org.apache.lucene.analysis.ja.dict.TokenInfoDictionary;
+import org.apache.lucene.analysis.ja.dict.TokenInfoFST;
+import org.apache.lucene.analysis.ja.dict.UnknownDictionary;
+import org.apache.lucene.analysis.ja.dict.UserDictionary;
+import org.apache.lucene.analysis.ja.tokenattributes.BaseFormAttribute;
+import org.apache.lucene.analysis.ja.tokenattributes.InflectionAttribute;
+import org.apache.lucene.analysis.ja.tokenattributes.PartOfSpeechAttribute;
+import org.apache.lucene.analysis.ja.tokenattributes.ReadingAttribute;
+import org.apache.lucene.analysis.tokenattributes.CharTermAttribute;
+import org.apache.lucene.analysis.tokenattributes.OffsetAttribute;
+import org.apache.lucene.util.ArrayUtil;
+import org.apache.lucene.util.AttributeSource;
+import org.apache.lucene.util.IntsRef;
+import org.apache.lucene.util.fst.FST;
+
+/**
+ * Tokenizes runs of digits, spaces, symbols and Latin, Greek or Cyrillic letters without the lattice of a
+ * {@link JapaneseTokenizer}, and produces the same tokens as that tokenizer.
+ * <p>
+ * The text is split into the runs of one character class that Kuromoji makes unknown words of.
+ * A run is eligible when no word of the user or system dictionary starts in it or extends into it,
+ * so the only word over it is its unknown word. An eligible run whose class has a single unknown word entry,
+ * such as digits, spaces and symbols, is an anchor: every segmentation passes through it with the same
+ * connection ids, so the text on each side of it is segmented independently. Eligible runs between anchors,
+ * or between an anchor and the start or end of the text, get the unknown word entries that the Viterbi
+ * search of Kuromoji chooses. The rest of the text is segmented by the tokenizer together with the anchors
+ * next to it, whose tokens are then dropped.
+ */
+final class ScriptRunSegmenter {
+
+    // same as JapaneseTokenizer
+    private static final int MAX_UNKNOWN_WORD_LENGTH = 1024;
+
+    // same as JapaneseTokenizer, which forces a segmentation after this many characters without a settled path
+    private static final int MAX_BACKTRACE_GAP = 1024;
+
+    // the longest word of the system dictionary
+    static final int MAX_SYSTEM_WORD_LENGTH = 26;
+
+    private static final CharacterDefinition CHARACTER_DEFINITION = CharacterDefinition.getInstance();
+
+    private static final UnknownDictionary UNKNOWN_DICTIONARY = UnknownDictionary.getInstance();
+
+    private static final ConnectionCosts CONNECTION_COSTS = ConnectionCosts.getInstance();
+
+    private static final TokenInfoFST SYSTEM_FST = TokenInfoDictionary.getInstance().getFST();
+
+    private static final int[][] UNKNOWN_WORD_IDS = new int[CharacterDefinition.CLASS_COUNT][];
+
+    private static final int MAX_UNKNOWN_WORD_IDS;
+
+    static {
+        final IntsRef wordIds = new IntsRef();
+        int max = 0;
+        for (byte characterClass = 0; characterClass < CharacterDefinition.CLASS_COUNT; characterClass++) {
+            UNKNOWN_DICTIONARY.lookupWordIds(characterClass, wordIds);
+            UNKNOWN_WORD_IDS[characterClass] = Arrays.copyOfRange(wordIds.ints, wordIds.offset, wordIds.offset + wordIds.length);
+            max = Math.max(max, wordIds.length);
+        }
+        MAX_UNKNOWN_WORD_IDS = max;
+    }
+
+    private final AttributeSource attributes;
+
+    private final boolean discardPunctuation;
+
+    private final boolean extendedMode;
+
+    private final LatticeWindow window;
+
+    private final CharTermAttribute termAtt;
+
+    private final OffsetAttribute offsetAtt;
+
+    private final BaseFormAttribute baseFormAtt;
+
+    private final PartOfSpeechAttribute posAtt;
+
+    private final ReadingAttribute readingAtt;
+
+    private final InflectionAttribute inflectionAtt;
+
+    private final FST.Arc<Long> arc = new FST.Arc<>();
+
+    private final FST.BytesReader systemFstReader = SYSTEM_FST.getBytesReader();
+
+    private TokenInfoFST userFst;
+
+    private FST.BytesReader userFstReader;
+
+    private char[] text;
+
+    private int base;
+
+    private int end;
+
+    // runs of the text
+    private int runCount;
+
+    private int[] runStarts = new int[16];
+
+    private int[] runEnds = new int[16];
+
+    private byte[] runClasses = new byte[16];
+
+    // 0: segmented by the tokenizer, 1: eligible, 2: anchor
+    private byte[] runKinds = new byte[16];
+
+    // the chosen unknown word of eligible runs
+    private int[] runWordIds = new int[16];
+
+    // Viterbi costs and back pointers of the unknown word entries of eligible runs
+    private int[] costs = new int[16];
+
+    private int[] backIndexes = new int[16];
+
+    // runs to be tokenized: kind (0: by the tokenizer, 1: without it), first run, and end run
+    private int stepCount;
+
+    private int[] steps = new int[48];
+
+    private int step;
+
+    // start and end of the text passed to the tokenizer, and of its tokens that are returned
+    private int latticeContextStart;
+
+    private int latticeStart;
+
+    private int latticeEnd;
+
+    private boolean inLattice;
+
+    // next run, and the end run, of the current step without the tokenizer
+    private int run;
+
+    private int runLimit;
+
+    // unigrams of a run in extended mode
+    private int[] unigramStarts = new int[16];
+
+    private int unigramEnd;
+
+    private int unigramCount;
+
+    private int unigramIndex;
+
+    /**
+     * @param attributes the attributes of the tokenizers passed to this segmenter
+     * @param window the window to feed the other text through, or null
+     */
+    ScriptRunSegmenter(final AttributeSource attributes, final boolean discardPunctuation, final Mode mode, final LatticeWindow window) {
+        this.attributes = attributes;
+        this.discardPunctuation = discardPunctuation;
+        extendedMode = mode == Mode.EXTENDED;
+        this.window = window;
+        termAtt = attributes.addAttribute(CharTermAttribute.class);
+        offsetAtt = attributes.addAttribute(OffsetAttribute.class);
+        baseFormAtt = attributes.addAttribute(BaseFormAttribute.class);
+        posAtt = attributes.addAttribute(PartOfSpeechAttribute.class);
+        readingAtt = attributes.addAttribute(ReadingAttribute.class);
+        inflectionAtt = attributes.addAttribute(InflectionAttribute.class);
+    }
+
+    /**
+     * @param userDictionary the user dictionary of the tokenizers, or null
+     * @param nBestCost the n-best cost of the tokenizers; the whole text is passed to them if it is positive
+     */
+    void reset(final char[] text, final int offset, final int length, final UserDictionary userDictionary, final int nBestCost)
+            throws IOException {
+        this.text = text;
+        base = offset;
+        end = offset + length;
+        inLattice = false;
+        step = 0;
+        run = 0;
+        runLimit = 0;
+        unigramCount = 0;
+        unigramIndex = 0;
+        if (userDictionary == null) {
+            userFst = null;
+            userFstReader = null;
+        } else if (userFst != userDictionary.getFST()) {
+            userFst = userDictionary.getFST();
+            userFstReader = userFst.getBytesReader();
+        }
+
+        runCount = 0;
+        stepCount = 0;
+        if (nBestCost > 0) {
+            // n-best paths may cross any run
+            addRun(offset, end, CharacterDefinition.DEFAULT, (byte) 0);
+            addStep(0, 0, 1);
+            return;
+        }
+        findRuns();
+        if (hasLongStretch()) {
+            // JapaneseTokenizer may force a segmentation in it, which depends on where its input starts
+            runCount = 0;
+            addRun(offset, end, CharacterDefinition.DEFAULT, (byte) 0);
+            addStep(0, 0, 1);
+            return;
+        }
+        int latticeFirst = 0;
+        for (int first = 0; first < runCount; first++) {
+            if (runKinds[first] == 0) {
+                continue;
+            }
+            int last = first;
+            while (last + 1 < runCount && runKinds[last + 1] != 0) {
+                last++;
+            }
+            // from the first anchor, or from the start of the text, to the last anchor, or to the end of the text
+            int fastFirst = first;
+            while (fastFirst > 0 && fastFirst <= last && runKinds[fastFirst] != 2) {
+                fastFirst++;
+            }
+            int fastLast = last;
+            while (fastLast < runCount - 1 && fastLast >= fastFirst && runKinds[fastLast] != 2) {
+                fastLast--;
+            }
+            if (fastFirst <= fastLast) {
+                if (fastFirst > latticeFirst) {
+                    addStep(0, latticeFirst, fastFirst);
+                }
+                chooseUnknownWords(fastFirst, fastLast);
+                addStep(1, fastFirst, fastLast + 1);
+                latticeFirst = fastLast + 1;
+            }
+            first = last;
+        }
+        if (latticeFirst < runCount) {
+            addStep(0, latticeFirst, runCount);
+        }
+    }
+
+    /**
+     * Produces the next token with offsets relative to the start of the text.
+     */
+    boolean incrementToken(final JapaneseTokenizer tokenizer) throws IOException {
+        while (true) {
+            if (inLattice) {
+                if (window != null ? window.incrementToken(tokenizer, offsetAtt) : tokenizer.incrementToken()) {
+                    final int start = latticeContextStart + offsetAtt.startOffset();
+                    if (start < latticeStart || start >= latticeEnd) {
+                        // a token of an anchor
+                        continue;
+                    }
+                    final int shift = latticeContextStart - base;
+                    offsetAtt.setOffset(shift + offsetAtt.startOffset(), shift + offsetAtt.endOffset());
+                    return true;
+                }
+                if (window == null) {
+                    tokenizer.end();
+                    tokenizer.close();
+                }
+                inLattice = false;
+            }
+            if (unigramIndex < unigramCount) {
+                final int start = unigramStarts[unigramIndex++];
+                final int unigramEnd = unigramIndex < unigramCount ? unigramStarts[unigramIndex] : this.unigramEnd;
+                if (!discardPunctuation || !isPunctuation(text[start])) {
+                    setToken(CharacterDefinition.NGRAM, start, unigramEnd);
+                    return true;
+                }
+                continue;
+            }
+            if (run < runLimit) {
+                final int r = run++;
+                if (extendedMode) {
+                    // JapaneseTokenizer splits unknown words into unigrams in extended mode
+                    findUnigrams(runStarts[r], runEnds[r]);
+                } else if (!discardPunctuation || !isPunctuation(text[runStarts[r]])) {
+                    setToken(runWordIds[r], runStarts[r], runEnds[r]);
+                    return true;
+                }
+                continue;
+            }
+            if (step >= stepCount) {
+                text = null;
+                return false;
+            }
+
+            final int kind = steps[step * 3];
+            final int first = steps[step * 3 + 1];
+            final int limit = steps[step * 3 + 2];
+            step++;
+            if (kind == 1) {
+                run = first;
+                runLimit = limit;
+            } else {
+                startLattice(tokenizer, first, limit);
+            }
+        }
+    }
+
+    int getFinalOffset() {
+        return end - base;
+    }
+
+    /**
+     * Passes the runs from {@code first} to before {@code limit} to the tokenizer, with the anchors on each side.
+     */
+    private void startLattice(final JapaneseTokenizer tokenizer, final int first, final int limit) throws IOException {
+        latticeStart = runStarts[first];
+        latticeEnd = runEnds[limit - 1];
+        latticeContextStart = first > 0 && runKinds[first - 1] == 2 ? runStarts[first - 1] : latticeStart;
+        final int latticeContextEnd = limit < runCount && runKinds[limit] == 2 ? runEnds[limit] : latticeEnd;
+        inLattice = true;
+        final CharArrayReader reader = new CharArrayReader(text, latticeContextStart, latticeContextEnd - latticeContextStart);
+        if (window != null) {
+            window.reset(tokenizer, reader);
+        } else {
+            tokenizer.setReader(reader);
+            tokenizer.reset();
+        }
+    }
+
+    private void addStep(final int kind, final int first, final int limit) {
+        if (stepCount * 3 == steps.length) {
+            steps = Arrays.copyOf(steps, steps.length * 2);
+        }
+        steps[stepCount * 3] = kind;
+        steps[stepCount * 3 + 1] = first;
+        steps[stepCount * 3 + 2] = limit;
+        stepCount++;
+    }
+
+    /**
+     * Splits the text into runs and finds the eligible ones. The user dictionary is looked up at every position
+     * because its words have no length limit, but the system dictionary only in the runs that can be eligible
+     * and in the {@link #MAX_SYSTEM_WORD_LENGTH} characters before them, and only until a word is found in a run.
+     */
+    private void findRuns() throws IOException {
+        // end of the longest dictionary word that starts before the probed positions
+        int reach = base;
+        // positions before this are probed in the system dictionary, or cannot reach the current run
+        int probed = base;
+        int pos = base;
+        while (pos < end) {
+            final int start = pos;
+            final byte characterClass = CHARACTER_DEFINITION.getCharacterClass(text[pos]);
+            final boolean punctuation = isPunctuation(text[pos]);
+            do {
+                pos++;
+            } while (pos < end && CHARACTER_DEFINITION.getCharacterClass(text[pos]) == characterClass && isPunctuation(text[pos]) == punctuation);
+
+            boolean eligible = isFastClass(characterClass) && reach <= start && pos - start <= MAX_UNKNOWN_WORD_LENGTH;
+            int userReach = reach;
+            for (int i = start; i < pos; i++) {
+                final int wordEnd = findWordEnd(userFst, userFstReader, i);
+                if (wordEnd > i) {
+                    eligible = false;
+                    userReach = Math.max(userReach, wordEnd);
+                }
+            }
+            if (eligible) {
+                for (int i = Math.max(probed, start - MAX_SYSTEM_WORD_LENGTH); i < start; i++) {
+                    reach = Math.max(reach, findWordEnd(SYSTEM_FST, systemFstReader, i));
+                }
+                eligible = reach <= start;
+                probed = start;
+                while (eligible && probed < pos) {
+                    final int wordEnd = findWordEnd(SYSTEM_FST, systemFstReader, probed);
+                    if (wordEnd > probed) {
+                        eligible = false;
+                        reach = Math.max(reach, wordEnd);
+                    }
+                    probed++;
+                }
+            }
+            reach = Math.max(reach, userReach);
+
+            final byte kind;
+            if (!eligible) {
+                kind = 0;
+            } else if (UNKNOWN_WORD_IDS[characterClass].length == 1) {
+                kind = 2;
+            } else {
+                kind = 1;
+            }
+            addRun(start, pos, characterClass, kind);
+        }
+    }
+
+    /**
+     * Returns true if more than {@link #MAX_BACKTRACE_GAP} characters are between two anchors,
+     * or between an anchor and the start or the end of the text.
+     */
+    private boolean hasLongStretch() {
+        int stretchStart = base;
+        for (int r = 0; r < runCount; r++) {
+            if (runKinds[r] == 2) {
+                if (runStarts[r] - stretchStart > MAX_BACKTRACE_GAP) {
+                    return true;
+                }
+                stretchStart = runEnds[r];
+            }
+        }
+        return end - stretchStart > MAX_BACKTRACE_GAP;
+    }
+
+    /**
+     * Returns the end of the longest word of the dictionary at the given position, or the position if there is none.
+     */
+    private int findWordEnd(final TokenInfoFST fst, final FST.BytesReader reader, final int start) throws IOException {
+        int wordEnd = start;
+        if (fst == null) {
+            return wordEnd;
+        }
+        fst.getFirstArc(arc);
+        for (int i = start; i < end; i++) {
+            if (fst.findTargetArc(text[i], arc, arc, i == start, reader) == null) {
+                break;
+            }
+            if (arc.isFinal()) {
+                wordEnd = i + 1;
+            }
+        }
+        return wordEnd;
+    }
+
+    private static boolean isFastClass(final byte characterClass) {
+        // the constants of CharacterDefinition are not compile-time constants
+        return characterClass == CharacterDefinition.DEFAULT || characterClass == CharacterDefinition.SPACE
+                || characterClass == CharacterDefinition.SYMBOL || characterClass == CharacterDefinition.NUMERIC
+                || characterClass == CharacterDefinition.ALPHA || characterClass == CharacterDefinition.CYRILLIC
+                || characterClass == CharacterDefinition.GREEK;
+    }
+
+    private void addRun(final int start, final int runEnd, final byte characterClass, final byte kind) {
+        if (runCount == runStarts.length) {
+            final int size = ArrayUtil.oversize(runCount + 1, Integer.BYTES);
+            runStarts = Arrays.copyOf(runStarts, size);
+            runEnds = Arrays.copyOf(runEnds, size);
+            runClasses = Arrays.copyOf(runClasses, size);
+            runKinds = Arrays.copyOf(runKinds, size);
+            runWordIds = Arrays.copyOf(runWordIds, size);
+        }
+        runStarts[runCount] = start;
+        runEnds[runCount] = runEnd;
+        runClasses[runCount] = characterClass;
+        runKinds[runCount] = kind;
+        runWordIds[runCount] = -1;
+        runCount++;
+    }
+
+    /**
+     * Chooses the unknown words of the eligible runs from {@code first} to {@code last} as the Viterbi search of
+     * {@link JapaneseTokenizer} does, with the same order of entries and the same tie-breaking.
+     * The words of runs that are not between anchors or the ends of the text are not used.
+     */
+    private void chooseUnknownWords(final int first, final int last) {
+        final int size = (last - first + 1) * MAX_UNKNOWN_WORD_IDS;
+        if (costs.length < size) {
+            costs = new int[ArrayUtil.oversize(size, Integer.BYTES)];
+            backIndexes = new int[costs.length];
+        }
+        for (int r = first; r <= last; r++) {
+            final int[] wordIds = UNKNOWN_WORD_IDS[runClasses[r]];
+            final int slot = (r - first) * MAX_UNKNOWN_WORD_IDS;
+            for (int i = 0; i < wordIds.length; i++) {
+                final int leftId = UNKNOWN_DICTIONARY.getLeftId(wordIds[i]);
+                int leastCost;
+                int leastIndex = -1;
+                if (r == first) {
+                    // after the start of the text, or after a word with the only right id of an anchor
+                    leastCost = r == 0 ? CONNECTION_COSTS.get(0, leftId) : 0;
+                } else {
+                    final int[] previousIds = UNKNOWN_WORD_IDS[runClasses[r - 1]];
+                    final int previousSlot = slot - MAX_UNKNOWN_WORD_IDS;
+                    leastCost = Integer.MAX_VALUE;
+                    for (int j = 0; j < previousIds.length; j++) {
+                        final int cost = costs[previousSlot + j] + CONNECTION_COSTS.get(UNKNOWN_DICTIONARY.getRightId(previousIds[j]), leftId);
+                        if (cost < leastCost) {
+                            leastCost = cost;
+                            leastIndex = j;
+                        }
+                    }
+                }
+                costs[slot + i] = leastCost + UNKNOWN_DICTIONARY.getWordCost(wordIds[i]);
+                backIndexes[slot + i] = leastIndex;
+            }
+        }
+
+        final int[] lastIds = UNKNOWN_WORD_IDS[runClasses[last]];
+        final int lastSlot = (last - first) * MAX_UNKNOWN_WORD_IDS;
+        int index = 0;
+        if (last == runCount - 1) {
+            // before the end of the text
+            int leastCost = Integer.MAX_VALUE;
+            for (int i = 0; i < lastIds.length; i++) {
+                final int cost = costs[lastSlot + i] + CONNECTION_COSTS.get(UNKNOWN_DICTIONARY.getRightId(lastIds[i]), 0);
+                if (cost < leastCost) {
+                    leastCost = cost;
+                    index = i;
+                }
+            }
+        }
+        for (int r = last; r >= first; r--) {
+            final int slot = (r - first) * MAX_UNKNOWN_WORD_IDS;
+            runWordIds[r] = UNKNOWN_WORD_IDS[runClasses[r]][index];
+            index = backIndexes[slot + index];
+        }
+    }
+
+    /**
+     * Splits a run into characters, where a low surrogate is joined to the preceding character
+     * from the end of the run as {@link JapaneseTokenizer} does.
+     */
+    private void findUnigrams(final int start, final int runEnd) {
+        unigramCount = 0;
+        unigramIndex = 0;
+        unigramEnd = runEnd;
+        if (unigramStarts.length < runEnd - start) {
+            unigramStarts = new int[ArrayUtil.oversize(runEnd - start, Integer.BYTES)];
+        }
+        for (int i = runEnd - 1; i >= start; i--) {
+            if (i > start && Character.isLowSurrogate(text[i])) {
+                i--;
+            }
+            unigramStarts[unigramCount++] = i;
+        }
+        // in the order of the text
+        for (int i = 0, j = unigramCount - 1; i < j; i++, j--) {
+            final int tmp = unigramStarts[i];
+            unigramStarts[i] = unigramStarts[j];
+            unigramStarts[j] = tmp;
+        }
+    }
+
+    private void setToken(final int wordId, final int start, final int tokenEnd) {
+        attributes.clearAttributes();
+        termAtt.copyBuffer(text, start, tokenEnd - start);
+        offsetAtt.setOffset(start - base, tokenEnd - base);
+        final Token token = new Token(wordId, Arrays.copyOfRange(text, start, tokenEnd), 0, tokenEnd - start, JapaneseTokenizer.Type.UNKNOWN,
+                start - base, UNKNOWN_DICTIONARY);
+        baseFormAtt.setToken(token);
+        posAtt.setToken(token);
+        readingAtt.setToken(token);
+        inflectionAtt.setToken(token);
+    }
+
+    // same as JapaneseTokenizer
+    private static boolean isPunctuation(final char ch) {
+        switch (Character.getType(ch)) {
+        case Character.SPACE_SEPARATOR:
+        case Character.LINE_SEPARATOR:
+        case Character.PARAGRAPH_SEPARATOR:
+        case Character.CONTROL:
+        case Character.FORMAT:
+        case Character.DASH_PUNCTUATION:
+        case Character.START_PUNCTUATION:
+        case Character.END_PUNCTUATION:
+        case Character.CONNECTOR_PUNCTUATION:
+        case Character.OTHER_PUNCTUATION:
+        case Character.MATH_SYMBOL:
+        case Character.CURRENCY_SYMBOL:
+        case Character.MODIFIER_SYMBOL:
+        case Character.OTHER_SYMBOL:
+        case Character.INITIAL_QUOTE_PUNCTUATION:
+        case Character.FINAL_QUOTE_PUNCTUATION:
+            return true;
+        default:
+            return false;
+        }
+    }
+}
@@ -0,0 +1,89 @@
+package org.codelibs.fesen.extension.analysis;
+
+import org.apache.lucene.util.AttributeSource.State;
+import org.codelibs.fesen.common.cache.Cache;
+import org.codelibs.fesen.common.cache.CacheBuilder;
+
+/**
+ * Size-bounded LRU cache of tokenized texts for {@link ReloadableKuromojiTokenizer}.
+ * Entries are keyed by the input text and the dictionary generation, and all entries
+ * are dropped once a tokenizer reports a newer generation.
+ */
+public class SegmentationCache {
+
+    private final Cache<Key, Tokens> cache;
+
+    private final int maxLength;
+
+    private volatile long generation;
+
+    public SegmentationCache(final int size, final int maxLength) {
+        this.cache = CacheBuilder.<Key, Tokens> builder().setMaximumWeight(size).build();
+        this.maxLength = maxLength;
+    }
+
+    public int getMaxLength() {
+        return maxLength;
+    }
+
+    Tokens get(final String text, final long generation) {
+        if (generation > this.generation) {
+            synchronized (this) {
+                if (generation > this.generation) {
+                    this.generation = generation;
+                    cache.invalidateAll();
+                }
+            }
+        }
+        return cache.get(new Key(text, generation));
+    }
+
+    void put(final String text, final long generation, final Tokens tokens) {
+        if (generation == this.generation) {
+            cache.put(new Key(text, generation), tokens);
+        }
+    }
+
+    public int count() {
+        return cache.count();
+    }
+
+    private static final class Key {
+        private final String text;
+
+        private final long generation;
+
+        Key(final String text, final long generation) {
+            this.text = text;
+            this.generation = generation;
+        }
+
+        @Override
+        public int hashCode() {
+            return text.hashCode() * 31 + Long.hashCode(generation);
+        }
+
+        @Override
+        public boolean equals(final Object obj) {
+            if (!(obj instanceof Key)) {
+                return false;
+            }
+            final Key other = (Key) obj;
+            return generation == other.generation && text.equals(other.text);
+        }
+    }
+
+    /**
+     * Captured token states with uncorrected offsets, and the final offset of the text.
+     */
+    static final class Tokens {
+        final State[] states;
+
+        final int finalOffset;
+
+        Tokens(final State[] states, final int finalOffset) {
+            this.states = states;
+            this.finalOffset = finalOffset;
+        }
+    }
+}
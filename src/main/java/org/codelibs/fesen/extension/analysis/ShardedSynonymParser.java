@@ -0,0 +1,147 @@
+package org.codelibs.fesen.extension.analysis;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.Reader;
+import java.io.StringReader;
+import java.text.ParseException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+
+import org.apache.lucene.analysis.Analyzer;
+import org.apache.lucene.analysis.synonym.SolrSynonymParser;
+import org.apache.lucene.analysis.synonym.SynonymMap;
+import org.apache.lucene.analysis.synonym.WordnetSynonymParser;
+import org.apache.lucene.util.CharsRef;
+
+/**
+ * Parses synonym rules in shards of lines on {@link AnalysisExecutors#tokenizeExecutor()}.
+ * Each shard records the entries its parser adds, and the entries are added to a single builder
+ * in the order of the rules, so the map is identical to the one built by a single parser.
+ * A WordNet synset is never split across shards.
+ */
+final class ShardedSynonymParser {
+
+    static final int DEFAULT_SHARD_LINES = 20000;
+
+    private ShardedSynonymParser() {
+    }
+
+    static SynonymMap parse(final Reader reader, final boolean wordnet, final boolean expand, final Analyzer analyzer,
+            final int shardLines) throws IOException, ParseException {
+        final List<Future<List<Entry>>> shards = new ArrayList<>();
+        try {
+            final BufferedReader br = reader instanceof BufferedReader ? (BufferedReader) reader : new BufferedReader(reader);
+            final StringBuilder shard = new StringBuilder();
+            int lineNum = 0;
+            int shardStart = 0;
+            int shardSize = 0;
+            String synsetPrefix = null;
+            String line;
+            while ((line = br.readLine()) != null) {
+                lineNum++;
+                final boolean newSynset = synsetPrefix == null || !line.startsWith(synsetPrefix);
+                if (shardSize >= shardLines && (!wordnet || newSynset)) {
+                    shards.add(submit(shard.toString(), shardStart, wordnet, expand, analyzer));
+                    shard.setLength(0);
+                    shardStart = lineNum - 1;
+                    shardSize = 0;
+                }
+                if (wordnet && newSynset && line.length() >= 11) {
+                    synsetPrefix = line.substring(0, 11);
+                }
+                shard.append(line).append('\n');
+                shardSize++;
+            }
+
+            // the last shard is parsed by this thread while the others are running
+            final List<Entry> lastShard = parseShard(shard.toString(), shardStart, wordnet, expand, analyzer);
+            final SynonymMap.Builder builder = new SynonymMap.Builder(true);
+            for (final Future<List<Entry>> future : shards) {
+                for (final Entry entry : get(future)) {
+                    builder.add(entry.input, entry.output, entry.includeOrig);
+                }
+            }
+            for (final Entry entry : lastShard) {
+                builder.add(entry.input, entry.output, entry.includeOrig);
+            }
+            return builder.build();
+        } finally {
+            for (final Future<List<Entry>> future : shards) {
+                future.cancel(false);
+            }
+        }
+    }
+
+    private static Future<List<Entry>> submit(final String text, final int firstLine, final boolean wordnet, final boolean expand,
+            final Analyzer analyzer) {
+        return AnalysisExecutors.tokenizeExecutor().submit(() -> parseShard(text, firstLine, wordnet, expand, analyzer));
+    }
+
+    private static List<Entry> get(final Future<List<Entry>> future) throws IOException, ParseException {
+        try {
+            return future.get();
+        } catch (final InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while parsing synonyms.", e);
+        } catch (final ExecutionException e) {
+            final Throwable cause = e.getCause();
+            if (cause instanceof IOException) {
+                throw (IOException) cause;
+            }
+            if (cause instanceof ParseException) {
+                throw (ParseException) cause;
+            }
+            if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            }
+            throw new IOException("Failed to parse synonyms.", cause);
+        }
+    }
+
+    private static List<Entry> parseShard(final String text, final int firstLine, final boolean wordnet, final boolean expand,
+            final Analyzer analyzer) throws IOException, ParseException {
+        final List<Entry> entries = new ArrayList<>();
+        try {
+            if (wordnet) {
+                new WordnetSynonymParser(true, expand, analyzer) {
+                    @Override
+                    public void add(final CharsRef input, final CharsRef output, final boolean includeOrig) {
+                        entries.add(new Entry(input, output, includeOrig));
+                    }
+                }.parse(new StringReader(text));
+            } else {
+                new SolrSynonymParser(true, expand, analyzer) {
+                    @Override
+                    public void add(final CharsRef input, final CharsRef output, final boolean includeOrig) {
+                        entries.add(new Entry(input, output, includeOrig));
+                    }
+                }.parse(new StringReader(text));
+            }
+        } catch (final ParseException e) {
+            if (firstLine == 0) {
+                throw e;
+            }
+            final ParseException ex = new ParseException(e.getMessage() + " of the lines after line " + firstLine, e.getErrorOffset());
+            ex.initCause(e);
+            throw ex;
+        }
+        return entries;
+    }
+
+    private static final class Entry {
+        private final CharsRef input;
+
+        private final CharsRef output;
+
+        private final boolean includeOrig;
+
+        Entry(final CharsRef input, final CharsRef output, final boolean includeOrig) {
+            this.input = input;
+            this.output = output;
+            this.includeOrig = includeOrig;
+        }
+    }
+}
@@ -0,0 +1,176 @@
+package org.codelibs.fesen.extension.analysis;
+
+import java.lang.ref.Cleaner;
+import java.security.AccessController;
+import java.security.PrivilegedAction;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.Consumer;
+import java.util.function.Supplier;
+
+import org.codelibs.fesen.index.Index;
+
+/**
+ * Node-level registry of immutable analysis resources shared by many factories.
+ * Each key is loaded once and kept while at least one lease on it is alive, and then it is passed to
+ * the {@code onRemove} action of the registry.
+ */
+public class SharedResourceRegistry<K, V> {
+
+    static final Cleaner CLEANER = AccessController.doPrivileged((PrivilegedAction<Cleaner>) Cleaner::create);
+
+    private static final Map<Index, Set<Cleanup>> INDEX_CLEANUPS = new HashMap<>();
+
+    private final Map<K, Entry<K, V>> entries = new HashMap<>();
+
+    private final Consumer<V> onRemove;
+
+    public SharedResourceRegistry() {
+        this(value -> {});
+    }
+
+    public SharedResourceRegistry(final Consumer<V> onRemove) {
+        this.onRemove = onRemove;
+    }
+
+    public Lease<V> acquire(final K key, final Supplier<V> loader) {
+        final Entry<K, V> entry;
+        synchronized (entries) {
+            entry = entries.computeIfAbsent(key, Entry::new);
+            entry.refCount++;
+        }
+        try {
+            return new Lease<>(entry.load(loader), () -> release(entry));
+        } catch (final RuntimeException e) {
+            release(entry);
+            throw e;
+        }
+    }
+
+    private void release(final Entry<K, V> entry) {
+        synchronized (entries) {
+            entry.refCount--;
+            if (entry.refCount > 0 || !entries.remove(entry.key, entry)) {
+                return;
+            }
+        }
+        // no lease can be acquired on a removed entry
+        final V value = entry.getLoadedValue();
+        if (value != null) {
+            onRemove.accept(value);
+        }
+    }
+
+    public int size() {
+        synchronized (entries) {
+            return entries.size();
+        }
+    }
+
+    /**
+     * Runs {@code action} once, when {@code index} is removed from the node or when {@code owner}
+     * becomes unreachable, whichever comes first. The latter covers owners that are not part of
+     * an index service, such as the analyzers of the analyze API. The action must not refer to the owner.
+     */
+    public static void registerCleanup(final Object owner, final Index index, final Runnable action) {
+        final Cleanup cleanup = new Cleanup(index, action);
+        synchronized (INDEX_CLEANUPS) {
+            INDEX_CLEANUPS.computeIfAbsent(index, k -> new HashSet<>()).add(cleanup);
+        }
+        CLEANER.register(owner, cleanup);
+    }
+
+    /**
+     * Runs the cleanup actions registered for {@code index}. Called after the index is removed from the node.
+     */
+    public static void runCleanups(final Index index) {
+        final Set<Cleanup> cleanups;
+        synchronized (INDEX_CLEANUPS) {
+            cleanups = INDEX_CLEANUPS.remove(index);
+        }
+        if (cleanups != null) {
+            for (final Cleanup cleanup : cleanups) {
+                cleanup.run();
+            }
+        }
+    }
+
+    private static final class Cleanup implements Runnable {
+        private final Index index;
+
+        private final Runnable action;
+
+        private final AtomicBoolean done = new AtomicBoolean(false);
+
+        Cleanup(final Index index, final Runnable action) {
+            this.index = index;
+            this.action = action;
+        }
+
+        @Override
+        public void run() {
+            if (!done.compareAndSet(false, true)) {
+                return;
+            }
+            synchronized (INDEX_CLEANUPS) {
+                final Set<Cleanup> cleanups = INDEX_CLEANUPS.get(index);
+                if (cleanups != null && cleanups.remove(this) && cleanups.isEmpty()) {
+                    INDEX_CLEANUPS.remove(index);
+                }
+            }
+            action.run();
+        }
+    }
+
+    private static final class Entry<K, V> {
+        private final K key;
+
+        private int refCount;
+
+        private boolean loaded;
+
+        private V value;
+
+        Entry(final K key) {
+            this.key = key;
+        }
+
+        synchronized V load(final Supplier<V> loader) {
+            if (!loaded) {
+                value = loader.get();
+                loaded = true;
+            }
+            return value;
+        }
+
+        synchronized V getLoadedValue() {
+            return loaded ? value : null;
+        }
+    }
+
+    public static final class Lease<V> {
+        private final V value;
+
+        private final Runnable releaser;
+
+        private final AtomicBoolean released = new AtomicBoolean(false);
+
+        Lease(final V value, final Runnable releaser) {
+            this.value = value;
+            this.releaser = releaser;
+        }
+
+        public V get() {
+            return value;
+        }
+
+        public void release() {
+            if (released.compareAndSet(false, true)) {
+                releaser.run();
+            }
+        }
+    }
+}
@@ -8,23 +8,47 @@ import java.io.InputStreamReader;
 import java.io.Reader;
 import java.io.StringReader;
 import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
 import java.nio.file.Path;
 import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
 
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
 import org.apache.lucene.analysis.Analyzer;
 import org.apache.lucene.analysis.TokenStream;
 import org.apache.lucene.analysis.Tokenizer;
 import org.apache.lucene.analysis.core.KeywordTokenizer;
 import org.apache.lucene.analysis.core.LowerCaseFilter;
-import org.apache.lucene.analysis.synonym.SolrSynonymParser;
 import org.apache.lucene.analysis.synonym.SynonymMap;
-import org.apache.lucene.analysis.synonym.WordnetSynonymParser;
 import org.codelibs.fesen.common.settings.Settings;
 import org.codelibs.fesen.core.TimeValue;
 import org.codelibs.fesen.env.Environment;
 import org.codelibs.fesen.index.analysis.Analysis;
 
+/**
+ * Loads the {@link SynonymMap} of a synonym tokenizer. Maps built from the same rules and options
+ * are shared by all loaders on the node through a {@link SharedResourceRegistry}.
+ * With dynamic_reload, the file is watched by {@link ResourceWatcher} and a changed file is rebuilt
+ * on {@link AnalysisExecutors#reloadExecutor()}, while tokenizers keep using the current map.
+ * With synonyms_artifact, a {@link SynonymMapArtifact} next to synonyms_path is used off-heap while it
+ * matches the file, and with synonyms_artifact_write, a map built from the file is saved as a new artifact. The {@link SynonymMatcher} and the {@link DecodedSynonymWords}
+ * of a map are built when the map is loaded.
+ */
 public class SynonymLoader {
+    private static final Logger logger = LogManager.getLogger(SynonymLoader.class);
+
+    // the mapped file of an artifact map is closed when no loader uses it
+    private static final SharedResourceRegistry<String, SynonymMap> SYNONYM_MAPS = new SharedResourceRegistry<>(SynonymMapArtifact::release);
+
+    private static final int MAX_KEY_ATTEMPTS = 3;
+
+    // replaced with a compare-and-set, so that close() does not wait for a reload
+    private final AtomicReference<State> state = new AtomicReference<>(new State(null, null, 0));
+
     private File reloadableFile = null;
 
     private final Analyzer analyzer;
@@ -37,11 +61,14 @@ public class SynonymLoader {
 
     private final Environment env;
 
-    private volatile long lastModified;
+    // a map built by an older load is not published
+    private final AtomicLong loadCount = new AtomicLong();
+
+    private final AtomicBoolean reloadPending = new AtomicBoolean(false);
 
-    private volatile long lastChecked;
+    private volatile ResourceWatcher.Registration registration;
 
-    private volatile SynonymMap synonymMap;
+    private final AtomicBoolean closed = new AtomicBoolean(false);
 
     public SynonymLoader(final Environment env, final Settings settings, final boolean expand, final Analyzer analyzer) {
         this.env = env;
@@ -50,69 +77,236 @@ public class SynonymLoader {
         this.analyzer = analyzer;
 
         createSynonymMap(false);
-    }
 
-    public boolean isUpdate(final long time) {
-        if (System.currentTimeMillis() - lastChecked > reloadInterval) {
-            lastChecked = System.currentTimeMillis();
-            final long timestamp = reloadableFile.lastModified();
-            if (timestamp != time) {
-                synchronized (reloadableFile) {
-                    if (timestamp != lastModified) {
-                        createSynonymMap(true);
-                        return true;
-                    }
-                }
-            }
+        if (reloadableFile != null) {
+            registration = ResourceWatcher.getInstance().watch(reloadableFile.toPath(), reloadInterval, checksum -> scheduleReload());
         }
+    }
 
-        if (lastModified != time) {
-            return true;
+    /**
+     * Returns true if a map newer than the given {@link #getGeneration() generation} has been published.
+     */
+    public boolean isUpdate(final long generation) {
+        return state.get().generation != generation;
+    }
+
+    void scheduleReload() {
+        if (reloadPending.compareAndSet(false, true)) {
+            AnalysisExecutors.reloadExecutor().execute(() -> {
+                reloadPending.set(false);
+                reload();
+            });
         }
+    }
 
-        return false;
+    void reload() {
+        if (closed.get()) {
+            // a reload queued before close() must not acquire a lease that nothing releases
+            return;
+        }
+        try {
+            createSynonymMap(true);
+        } catch (final Exception e) {
+            logger.warn("Failed to reload {}. The current synonyms are kept.", reloadableFile, e);
+        }
     }
 
     public SynonymMap getSynonymMap() {
-        return synonymMap;
+        return state.get().synonymMap;
     }
 
     protected void createSynonymMap(final boolean reload) {
-        try (Reader rulesReader = getReader(reload)) {
-            if (rulesReader instanceof StringReader && ((StringReader) rulesReader).toString().length() == 0) {
-                synonymMap = null;
-                return;
-            }
+        if (!reload) {
+            initReloadableFile();
+        }
 
-            SynonymMap.Builder parser = null;
+        final long load = loadCount.incrementAndGet();
+        SharedResourceRegistry.Lease<SynonymMap> newLease = null;
+        SynonymMap localSynonymMap;
+        for (int attempt = 1;; attempt++) {
+            final String key = getSynonymMapKey();
+            if (key == null) {
+                localSynonymMap = buildSynonymMap(reload);
+                break;
+            }
+            newLease = SYNONYM_MAPS.acquire(key, () -> buildSynonymMap(reload));
+            if (attempt < MAX_KEY_ATTEMPTS && !key.equals(getSynonymMapKey())) {
+                // the file was modified while it was read, so the map may not match the key
+                logger.debug("{} was modified while it was loaded. Retrying.", settings.get("synonyms_path"));
+                newLease.release();
+                continue;
+            }
+            localSynonymMap = newLease.get();
+            break;
+        }
 
-            if ("wordnet".equalsIgnoreCase(settings.get("format"))) {
-                parser = new WordnetSynonymParser(true, expand, analyzer);
-                ((WordnetSynonymParser) parser).parse(rulesReader);
-            } else {
-                parser = new SolrSynonymParser(true, expand, analyzer);
-                ((SolrSynonymParser) parser).parse(rulesReader);
+        if (localSynonymMap != null) {
+            // built with the map, so that tokenizers do not wait for them
+            DecodedSynonymWords.get(localSynonymMap);
+            if (SynonymMatcher.isEnabled(settings.get("synonym_matcher"), localSynonymMap)) {
+                SynonymMatcher.get(localSynonymMap);
             }
+        }
+        publish(load, newLease, localSynonymMap);
+    }
 
-            final SynonymMap localSynonymMap = parser.build();
-            if (localSynonymMap.fst == null) {
-                synonymMap = null;
+    private void publish(final long load, final SharedResourceRegistry.Lease<SynonymMap> newLease, final SynonymMap localSynonymMap) {
+        while (true) {
+            final State current = state.get();
+            if (load != loadCount.get()) {
+                // a newer load publishes its own map
+                if (newLease != null) {
+                    newLease.release();
+                }
                 return;
             }
+            // a null map is published too, so that tokenizers drop the synonyms of an emptied file
+            final State next = new State(newLease, localSynonymMap, current.generation + 1);
+            if (state.compareAndSet(current, next)) {
+                if (current.lease != null) {
+                    current.lease.release();
+                }
+                if (closed.get() && newLease != null) {
+                    // close() may have released the previous lease only
+                    newLease.release();
+                }
+                return;
+            }
+        }
+    }
 
-            synonymMap = localSynonymMap;
+    private SynonymMap buildSynonymMap(final boolean reload) {
+        if (!settings.getAsBoolean("synonyms_artifact", false) || settings.getAsList("synonyms", null) != null
+                || settings.get("synonyms_path") == null) {
+            return parseSynonymMap(reload);
+        }
 
-            if (reloadableFile != null) {
-                lastModified = reloadableFile.lastModified();
-            } else {
-                lastModified = System.currentTimeMillis();
+        final Path path = env.configFile().resolve(settings.get("synonyms_path"));
+        final long sourceLength;
+        final long sourceChecksum;
+        try {
+            sourceLength = Files.size(path);
+            sourceChecksum = ContentDigest.of(path);
+        } catch (final IOException e) {
+            // the reader reports the failure
+            return parseSynonymMap(reload);
+        }
+        final SynonymMap artifactMap = SynonymMapArtifact.load(path, sourceLength, sourceChecksum, getOptions());
+        if (artifactMap != null) {
+            return artifactMap;
+        }
+
+        final SynonymMap localSynonymMap = parseSynonymMap(reload);
+        if (localSynonymMap == null || !settings.getAsBoolean("synonyms_artifact_write", false)) {
+            // the config directory is usually read-only, so artifacts are generated ahead of time
+            return localSynonymMap;
+        }
+        try {
+            SynonymMapArtifact.write(path, sourceLength, sourceChecksum, getOptions(), localSynonymMap);
+        } catch (final IOException | RuntimeException e) {
+            // the artifact is only a cache, so the parsed map is used
+            logger.warn("Failed to write the artifact of {}.", path, e);
+            return localSynonymMap;
+        }
+        final SynonymMap writtenMap = SynonymMapArtifact.load(path, sourceLength, sourceChecksum, getOptions());
+        return writtenMap != null ? writtenMap : localSynonymMap;
+    }
+
+    /**
+     * Parses synonyms_path with the given settings and writes its artifact.
+     */
+    static void writeArtifact(final Environment env, final Settings settings) throws IOException {
+        final Path path = env.configFile().resolve(settings.get("synonyms_path"));
+        // taken before the file is read, like buildSynonymMap
+        final long sourceLength = Files.size(path);
+        final long sourceChecksum = ContentDigest.of(path);
+        final SynonymLoader loader =
+                new SynonymLoader(env, Settings.builder().put(settings).put("synonyms_artifact", false).put("dynamic_reload", false).build(),
+                        settings.getAsBoolean("expand", true), getAnalyzer(settings.getAsBoolean("ignore_case", true)));
+        try {
+            final SynonymMap localSynonymMap = loader.getSynonymMap();
+            if (localSynonymMap == null) {
+                throw new IllegalArgumentException(path + " has no synonyms.");
             }
+            SynonymMapArtifact.write(path, sourceLength, sourceChecksum, loader.getOptions(), localSynonymMap);
+        } finally {
+            loader.close();
+        }
+    }
 
+    private SynonymMap parseSynonymMap(final boolean reload) {
+        try (Reader rulesReader = getReader(reload)) {
+            if (rulesReader instanceof StringReader && ((StringReader) rulesReader).toString().length() == 0) {
+                return null;
+            }
+
+            final boolean wordnet = "wordnet".equalsIgnoreCase(settings.get("format"));
+            final SynonymMap localSynonymMap =
+                    ShardedSynonymParser.parse(rulesReader, wordnet, expand, analyzer, ShardedSynonymParser.DEFAULT_SHARD_LINES);
+            if (localSynonymMap.fst == null) {
+                return null;
+            }
+            return localSynonymMap;
         } catch (final Exception e) {
             throw new IllegalArgumentException("failed to build synonyms", e);
         }
     }
 
+    private void initReloadableFile() {
+        if (settings.getAsList("synonyms", null) == null && settings.get("synonyms_path") != null
+                && settings.getAsBoolean("dynamic_reload", false)) {
+            final File file = env.configFile().resolve(settings.get("synonyms_path")).toFile();
+            if (file.exists()) {
+                reloadableFile = file;
+            }
+            reloadInterval = settings.getAsTime("reload_interval", TimeValue.timeValueMinutes(1)).getMillis();
+        }
+    }
+
+    /**
+     * Returns the key of the synonym map in the shared registry, or null if the rules cannot be read.
+     */
+    private String getSynonymMapKey() {
+        final String options = getOptions();
+        if (settings.getAsList("synonyms", null) != null) {
+            return "rules@" + String.join("\n", Analysis.getWordList(env, settings, "synonyms")) + options;
+        }
+        final String filePath = settings.get("synonyms_path");
+        if (filePath != null) {
+            final Path path = env.configFile().resolve(filePath).toAbsolutePath().normalize();
+            try {
+                // artifact maps are read off-heap and are not interchangeable with parsed ones
+                return path + "@" + Long.toHexString(ContentDigest.of(path)) + options + "|artifact="
+                        + settings.getAsBoolean("synonyms_artifact", false);
+            } catch (final IOException e) {
+                // the reader reports the failure
+                return null;
+            }
+        }
+        return null;
+    }
+
+    private String getOptions() {
+        return "|format=" + settings.get("format", "solr").toLowerCase(Locale.ROOT) + "|expand=" + expand + "|ignore_case="
+                + settings.getAsBoolean("ignore_case", true);
+    }
+
+    /**
+     * Stops watching the synonym file and releases the shared synonym map of this loader.
+     */
+    public void close() {
+        closed.set(true);
+        final ResourceWatcher.Registration localRegistration = registration;
+        if (localRegistration != null) {
+            localRegistration.cancel();
+        }
+        // a reload that publishes after this releases its own lease
+        final State current = state.get();
+        if (current.lease != null) {
+            current.lease.release();
+        }
+    }
+
     private Reader getReader(final boolean reload) throws IOException {
         if (reload) {
             if (reloadableFile == null) {
@@ -140,17 +334,10 @@ public class SynonymLoader {
                 final Path path = env.configFile().resolve(filePath);
 
                 try {
-                    final File file = path.toFile();
-                    if (file.exists()) {
-                        reloadableFile = file;
-                    }
                     reader = new BufferedReader(new InputStreamReader(path.toUri().toURL().openStream(), StandardCharsets.UTF_8));
                 } catch (final Exception e) {
                     throw new IllegalArgumentException("Failed to read " + filePath, e);
                 }
-
-                reloadInterval = settings.getAsTime("reload_interval", TimeValue.timeValueMinutes(1)).getMillis();
-
             } else {
                 reader = Analysis.getReaderFromFile(env, settings, "synonyms_path");
             }
@@ -165,8 +352,26 @@ public class SynonymLoader {
         return reloadableFile != null;
     }
 
-    public long getLastModified() {
-        return lastModified;
+    /**
+     * Returns the number of maps published by this loader, which changes whenever a new map is loaded.
+     */
+    public long getGeneration() {
+        return state.get().generation;
+    }
+
+    private static final class State {
+        private final SharedResourceRegistry.Lease<SynonymMap> lease;
+
+        private final SynonymMap synonymMap;
+
+        // changes whenever a new map is published
+        private final long generation;
+
+        private State(final SharedResourceRegistry.Lease<SynonymMap> lease, final SynonymMap synonymMap, final long generation) {
+            this.lease = lease;
+            this.synonymMap = synonymMap;
+            this.generation = generation;
+        }
     }
 
     protected static Analyzer getAnalyzer(final boolean ignoreCase) {
@@ -0,0 +1,223 @@
+package org.codelibs.fesen.extension.analysis;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.Collections;
+import java.util.Map;
+import java.util.WeakHashMap;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.apache.lucene.analysis.synonym.SynonymMap;
+import org.apache.lucene.codecs.CodecUtil;
+import org.apache.lucene.store.Directory;
+import org.apache.lucene.store.IOContext;
+import org.apache.lucene.store.IndexInput;
+import org.apache.lucene.store.IndexOutput;
+import org.apache.lucene.store.MMapDirectory;
+import org.apache.lucene.util.BytesRef;
+import org.apache.lucene.util.BytesRefBuilder;
+import org.apache.lucene.util.BytesRefHash;
+import org.apache.lucene.util.IOUtils;
+import org.apache.lucene.util.fst.ByteSequenceOutputs;
+import org.apache.lucene.util.fst.FST;
+import org.apache.lucene.util.fst.OffHeapFSTStore;
+import org.codelibs.fesen.common.settings.Settings;
+import org.codelibs.fesen.env.Environment;
+
+/**
+ * Binary form of a built {@link SynonymMap}, stored next to the synonyms file with the {@value #SUFFIX} suffix.
+ * The FST of a loaded artifact is read from a memory-mapped file, so only the output words are kept on the heap.
+ * An artifact is only used while the length and the CRC32C of the synonyms file, and the parser options,
+ * still match the values recorded in its header. The mapped file of a map is closed when the map is released
+ * by the registry of {@link SynonymLoader} and by every tokenizer that {@link #retain retained} it.
+ * {@link #main} builds an artifact offline, for nodes whose config directory is read-only.
+ */
+public final class SynonymMapArtifact {
+
+    private static final Logger logger = LogManager.getLogger(SynonymMapArtifact.class);
+
+    public static final String SUFFIX = ".fst";
+
+    private static final String CODEC_NAME = "SynonymMapArtifact";
+
+    private static final int VERSION = 0;
+
+    private static final Map<SynonymMap, MappedFile> ARTIFACT_MAPS = Collections.synchronizedMap(new WeakHashMap<>());
+
+    private static final Runnable NO_RELEASE = () -> {};
+
+    private SynonymMapArtifact() {
+    }
+
+    public static Path getArtifactPath(final Path source) {
+        return source.resolveSibling(source.getFileName() + SUFFIX);
+    }
+
+    /**
+     * Opens the artifact of {@code source}, or returns null if it does not exist or is stale.
+     */
+    public static SynonymMap load(final Path source, final long sourceLength, final long sourceChecksum, final String options) {
+        final Path artifact = getArtifactPath(source);
+        if (!Files.isRegularFile(artifact)) {
+            return null;
+        }
+        IndexInput in = null;
+        try (Directory dir = new MMapDirectory(artifact.getParent())) {
+            // the input stays open while the FST is in use
+            in = dir.openInput(artifact.getFileName().toString(), IOContext.DEFAULT);
+            CodecUtil.checksumEntireFile(in);
+            CodecUtil.checkHeader(in, CODEC_NAME, VERSION, VERSION);
+            if (in.readLong() != sourceLength || in.readLong() != sourceChecksum || !options.equals(in.readString())) {
+                logger.debug("{} is stale.", artifact);
+                in.close();
+                return null;
+            }
+            final int maxHorizontalContext = in.readVInt();
+            final int numWords = in.readVInt();
+            final BytesRefHash words = new BytesRefHash();
+            final BytesRefBuilder scratch = new BytesRefBuilder();
+            for (int i = 0; i < numWords; i++) {
+                final int length = in.readVInt();
+                scratch.grow(length);
+                in.readBytes(scratch.bytes(), 0, length);
+                scratch.setLength(length);
+                words.add(scratch.get());
+            }
+            final FST<BytesRef> fst = new FST<>(in, in, ByteSequenceOutputs.getSingleton(), new OffHeapFSTStore());
+            final SynonymMap synonymMap = new SynonymMap(fst, words, maxHorizontalContext);
+            ARTIFACT_MAPS.put(synonymMap, new MappedFile(in));
+            return synonymMap;
+        } catch (final IOException | RuntimeException e) {
+            IOUtils.closeWhileHandlingException(in);
+            logger.debug("Failed to load {}.", artifact, e);
+            return null;
+        }
+    }
+
+    /**
+     * Returns true if {@code synonymMap} was loaded from an artifact, so its FST is off-heap.
+     */
+    public static boolean isArtifact(final SynonymMap synonymMap) {
+        return ARTIFACT_MAPS.containsKey(synonymMap);
+    }
+
+    /**
+     * Keeps the mapped file of {@code synonymMap} open until the returned action is run or {@code owner}
+     * becomes unreachable. Returns null if the file has already been closed.
+     */
+    static Runnable retain(final Object owner, final SynonymMap synonymMap) {
+        final MappedFile file = ARTIFACT_MAPS.get(synonymMap);
+        if (file == null) {
+            return NO_RELEASE;
+        }
+        if (!file.retain()) {
+            return null;
+        }
+        return SharedResourceRegistry.CLEANER.register(owner, file::release)::clean;
+    }
+
+    /**
+     * Releases the reference of the loader that opened {@code synonymMap}.
+     */
+    static void release(final SynonymMap synonymMap) {
+        final MappedFile file = ARTIFACT_MAPS.get(synonymMap);
+        if (file != null) {
+            file.release();
+        }
+    }
+
+    /**
+     * Writes the artifact of {@code source}. {@code sourceLength} and {@code sourceChecksum} must be taken
+     * before the source is read. The artifact is written next to the source, so this is only called
+     * with synonyms_artifact_write, on a node where the config directory is writable, or by {@link #main}.
+     */
+    public static void write(final Path source, final long sourceLength, final long sourceChecksum, final String options,
+            final SynonymMap synonymMap) throws IOException {
+        final Path artifact = getArtifactPath(source);
+        String tmpName = null;
+        try (Directory dir = new MMapDirectory(artifact.getParent())) {
+            try (IndexOutput out = dir.createTempOutput(artifact.getFileName().toString(), "tmp", IOContext.DEFAULT)) {
+                tmpName = out.getName();
+                CodecUtil.writeHeader(out, CODEC_NAME, VERSION);
+                out.writeLong(sourceLength);
+                out.writeLong(sourceChecksum);
+                out.writeString(options);
+                out.writeVInt(synonymMap.maxHorizontalContext);
+                out.writeVInt(synonymMap.words.size());
+                final BytesRef scratch = new BytesRef();
+                for (int i = 0; i < synonymMap.words.size(); i++) {
+                    synonymMap.words.get(i, scratch);
+                    out.writeVInt(scratch.length);
+                    out.writeBytes(scratch.bytes, scratch.offset, scratch.length);
+                }
+                synonymMap.fst.save(out, out);
+                CodecUtil.writeFooter(out);
+            }
+            dir.rename(tmpName, artifact.getFileName().toString());
+            tmpName = null;
+            dir.syncMetaData();
+        } finally {
+            if (tmpName != null) {
+                try {
+                    Files.deleteIfExists(artifact.resolveSibling(tmpName));
+                } catch (final IOException e) {
+                    logger.debug("Failed to delete {}.", tmpName, e);
+                }
+            }
+        }
+    }
+
+    /**
+     * Writes the artifact of a synonyms file with the given tokenizer settings, for example:
+     * {@code SynonymMapArtifact config/synonyms.txt format=solr expand=true ignore_case=true}.
+     * Only "format", "expand" and "ignore_case" change the artifact.
+     */
+    public static void main(final String[] args) throws IOException {
+        if (args.length == 0) {
+            System.err.println("Usage: SynonymMapArtifact <synonyms file> [format=solr|wordnet] [expand=true|false] [ignore_case=true|false]");
+            System.exit(1);
+        }
+        final Path source = Paths.get(args[0]).toAbsolutePath().normalize();
+        final Settings.Builder builder = Settings.builder();
+        for (int i = 1; i < args.length; i++) {
+            final int pos = args[i].indexOf('=');
+            if (pos <= 0) {
+                throw new IllegalArgumentException("Invalid setting: " + args[i]);
+            }
+            builder.put(args[i].substring(0, pos), args[i].substring(pos + 1));
+        }
+        final Settings settings = builder.put("synonyms_path", source.getFileName().toString()).build();
+        final Environment env =
+                new Environment(Settings.builder().put("path.home", source.getParent().toString()).build(), source.getParent());
+        SynonymLoader.writeArtifact(env, settings);
+        System.out.println("Wrote " + getArtifactPath(source));
+    }
+
+    private static final class MappedFile {
+        private final IndexInput in;
+
+        // the loader that opened the map, and the tokenizers using it
+        private int refCount = 1;
+
+        MappedFile(final IndexInput in) {
+            this.in = in;
+        }
+
+        synchronized boolean retain() {
+            if (refCount == 0) {
+                return false;
+            }
+            refCount++;
+            return true;
+        }
+
+        synchronized void release() {
+            if (refCount > 0 && --refCount == 0) {
+                IOUtils.closeWhileHandlingException(in);
+            }
+        }
+    }
+}
@@ -0,0 +1,307 @@
+package org.codelibs.fesen.extension.analysis;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Map;
+import java.util.WeakHashMap;
+
+import org.apache.lucene.analysis.synonym.SynonymMap;
+import org.apache.lucene.util.ArrayUtil;
+import org.apache.lucene.util.BytesRef;
+import org.apache.lucene.util.IntsRef;
+import org.apache.lucene.util.RamUsageEstimator;
+import org.apache.lucene.util.fst.IntsRefFSTEnum;
+
+/**
+ * Aho-Corasick automaton over the keys of a {@link SynonymMap}, which finds the longest key starting
+ * at every position of a text in one pass. States are numbered in breadth-first order and their
+ * transitions are kept sorted in flat arrays. A matcher is built once per map and shared.
+ */
+final class SynonymMatcher {
+
+    private static final Map<SynonymMap, SynonymMatcher> MATCHERS = Collections.synchronizedMap(new WeakHashMap<>());
+
+    private static final Map<SynonymMap, Integer> MAX_KEY_LENGTHS = Collections.synchronizedMap(new WeakHashMap<>());
+
+    private static final int ROOT = 0;
+
+    // transitions of state s are in [edgeStarts[s], edgeStarts[s + 1])
+    private final int[] edgeStarts;
+
+    private final int[] edgeLabels;
+
+    private final int[] edgeTargets;
+
+    private final int[] failures;
+
+    // the longest final state on the failure path, or ROOT
+    private final int[] outputLinks;
+
+    // length of the key of a state in chars
+    private final int[] depths;
+
+    // index of the output of a final state, or -1
+    private final int[] outputIndexes;
+
+    private final BytesRef[] outputs;
+
+    private final int maxKeyLength;
+
+    /**
+     * Returns true if {@code synonymMap} is matched with an automaton for the synonym_matcher setting.
+     * Without the setting, a map loaded from a {@link SynonymMapArtifact} is matched with its FST,
+     * because the automaton would take the heap that the off-heap FST saves.
+     */
+    static boolean isEnabled(final String matcherType, final SynonymMap synonymMap) {
+        if (matcherType == null) {
+            return !SynonymMapArtifact.isArtifact(synonymMap);
+        }
+        return "automaton".equals(matcherType);
+    }
+
+    /**
+     * Returns the matcher of {@code synonymMap}, and builds it on the first call.
+     */
+    static SynonymMatcher get(final SynonymMap synonymMap) {
+        final SynonymMatcher matcher = MATCHERS.get(synonymMap);
+        if (matcher != null) {
+            return matcher;
+        }
+        final SynonymMatcher newMatcher;
+        try {
+            newMatcher = build(synonymMap);
+        } catch (final IOException e) {
+            throw new UncheckedIOException("Failed to read the synonym map.", e);
+        }
+        final SynonymMatcher oldMatcher = MATCHERS.putIfAbsent(synonymMap, newMatcher);
+        return oldMatcher != null ? oldMatcher : newMatcher;
+    }
+
+    /**
+     * Returns the length of the longest key of {@code synonymMap} in chars, without building its matcher.
+     */
+    static int getMaxKeyLength(final SynonymMap synonymMap) {
+        final SynonymMatcher matcher = MATCHERS.get(synonymMap);
+        if (matcher != null) {
+            return matcher.maxKeyLength;
+        }
+        final Integer maxKeyLength = MAX_KEY_LENGTHS.get(synonymMap);
+        if (maxKeyLength != null) {
+            return maxKeyLength;
+        }
+        int max = 0;
+        try {
+            final IntsRefFSTEnum<BytesRef> fstEnum = new IntsRefFSTEnum<>(synonymMap.fst);
+            IntsRefFSTEnum.InputOutput<BytesRef> entry;
+            while ((entry = fstEnum.next()) != null) {
+                int length = 0;
+                for (int i = 0; i < entry.input.length; i++) {
+                    length += Character.charCount(entry.input.ints[entry.input.offset + i]);
+                }
+                max = Math.max(max, length);
+            }
+        } catch (final IOException e) {
+            throw new UncheckedIOException("Failed to read the synonym map.", e);
+        }
+        MAX_KEY_LENGTHS.put(synonymMap, max);
+        return max;
+    }
+
+    private static SynonymMatcher build(final SynonymMap synonymMap) throws IOException {
+        // a trie of the keys in insertion order, linked by first child and next sibling
+        int[] labels = new int[64];
+        int[] firstChildren = new int[64];
+        int[] lastChildren = new int[64];
+        int[] nextSiblings = new int[64];
+        int[] depths = new int[64];
+        int[] outputIndexes = new int[64];
+        BytesRef[] outputs = new BytesRef[16];
+        int numStates = 1;
+        int numOutputs = 0;
+        firstChildren[ROOT] = -1;
+        lastChildren[ROOT] = -1;
+        outputIndexes[ROOT] = -1;
+
+        // the keys are enumerated in sorted order, so a new key only adds states after the prefix it shares
+        // with the previous key, and the children of a state are added in the order of their labels
+        int[] path = new int[16];
+        final IntsRef previous = new IntsRef(new int[16], 0, 0);
+        final IntsRefFSTEnum<BytesRef> fstEnum = new IntsRefFSTEnum<>(synonymMap.fst);
+        IntsRefFSTEnum.InputOutput<BytesRef> entry;
+        while ((entry = fstEnum.next()) != null) {
+            final IntsRef key = entry.input;
+            if (key.length == 0) {
+                continue;
+            }
+            int common = 0;
+            while (common < previous.length && common < key.length
+                    && previous.ints[common] == key.ints[key.offset + common]) {
+                common++;
+            }
+            path = ArrayUtil.grow(path, key.length + 1);
+            int state = path[common];
+            for (int i = common; i < key.length; i++) {
+                if (numStates == labels.length) {
+                    final int size = ArrayUtil.oversize(numStates + 1, Integer.BYTES);
+                    labels = Arrays.copyOf(labels, size);
+                    firstChildren = Arrays.copyOf(firstChildren, size);
+                    lastChildren = Arrays.copyOf(lastChildren, size);
+                    nextSiblings = Arrays.copyOf(nextSiblings, size);
+                    depths = Arrays.copyOf(depths, size);
+                    outputIndexes = Arrays.copyOf(outputIndexes, size);
+                }
+                final int label = key.ints[key.offset + i];
+                final int child = numStates++;
+                labels[child] = label;
+                firstChildren[child] = -1;
+                lastChildren[child] = -1;
+                nextSiblings[child] = -1;
+                depths[child] = depths[state] + Character.charCount(label);
+                outputIndexes[child] = -1;
+                if (lastChildren[state] == -1) {
+                    firstChildren[state] = child;
+                } else {
+                    nextSiblings[lastChildren[state]] = child;
+                }
+                lastChildren[state] = child;
+                state = child;
+                path[i + 1] = child;
+            }
+            if (numOutputs == outputs.length) {
+                outputs = Arrays.copyOf(outputs, ArrayUtil.oversize(numOutputs + 1, RamUsageEstimator.NUM_BYTES_OBJECT_REF));
+            }
+            outputIndexes[state] = numOutputs;
+            outputs[numOutputs++] = BytesRef.deepCopyOf(entry.output);
+
+            previous.ints = ArrayUtil.grow(previous.ints, key.length);
+            System.arraycopy(key.ints, key.offset, previous.ints, 0, key.length);
+            previous.length = key.length;
+        }
+
+        // renumber the states in breadth-first order
+        final int[] order = new int[numStates];
+        final int[] edgeStarts = new int[numStates + 1];
+        final int[] edgeLabels = new int[numStates - 1];
+        final int[] edgeTargets = new int[numStates - 1];
+        int tail = 1;
+        int numEdges = 0;
+        for (int head = 0; head < numStates; head++) {
+            final int state = order[head];
+            edgeStarts[head] = numEdges;
+            for (int child = firstChildren[state]; child != -1; child = nextSiblings[child]) {
+                edgeLabels[numEdges] = labels[child];
+                edgeTargets[numEdges++] = tail;
+                order[tail++] = child;
+            }
+        }
+        edgeStarts[numStates] = numEdges;
+
+        final int[] newDepths = new int[numStates];
+        final int[] newOutputIndexes = new int[numStates];
+        for (int i = 0; i < numStates; i++) {
+            newDepths[i] = depths[order[i]];
+            newOutputIndexes[i] = outputIndexes[order[i]];
+        }
+
+        final SynonymMatcher matcher = new SynonymMatcher(edgeStarts, edgeLabels, edgeTargets, new int[numStates], new int[numStates],
+                newDepths, newOutputIndexes, Arrays.copyOf(outputs, numOutputs));
+        matcher.linkFailures();
+        return matcher;
+    }
+
+    private SynonymMatcher(final int[] edgeStarts, final int[] edgeLabels, final int[] edgeTargets, final int[] failures,
+            final int[] outputLinks, final int[] depths, final int[] outputIndexes, final BytesRef[] outputs) {
+        this.edgeStarts = edgeStarts;
+        this.edgeLabels = edgeLabels;
+        this.edgeTargets = edgeTargets;
+        this.failures = failures;
+        this.outputLinks = outputLinks;
+        this.depths = depths;
+        this.outputIndexes = outputIndexes;
+        this.outputs = outputs;
+        int max = 0;
+        for (int state = 0; state < depths.length; state++) {
+            if (outputIndexes[state] >= 0) {
+                max = Math.max(max, depths[state]);
+            }
+        }
+        maxKeyLength = max;
+    }
+
+    private void linkFailures() {
+        // a parent always precedes its children in breadth-first order
+        for (int state = 0; state < failures.length; state++) {
+            for (int edge = edgeStarts[state]; edge < edgeStarts[state + 1]; edge++) {
+                final int child = edgeTargets[edge];
+                final int failure = state == ROOT ? ROOT : next(failures[state], edgeLabels[edge]);
+                failures[child] = failure;
+                outputLinks[child] = outputIndexes[failure] >= 0 ? failure : outputLinks[failure];
+            }
+        }
+    }
+
+    private int next(int state, final int label) {
+        while (true) {
+            final int target = findTarget(state, label);
+            if (target != -1) {
+                return target;
+            }
+            if (state == ROOT) {
+                return ROOT;
+            }
+            state = failures[state];
+        }
+    }
+
+    private int findTarget(final int state, final int label) {
+        int low = edgeStarts[state];
+        int high = edgeStarts[state + 1] - 1;
+        while (low <= high) {
+            final int mid = (low + high) >>> 1;
+            final int midLabel = edgeLabels[mid];
+            if (midLabel < label) {
+                low = mid + 1;
+            } else if (midLabel > label) {
+                high = mid - 1;
+            } else {
+                return edgeTargets[mid];
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Sets {@code ends[i]} to the end of the longest key starting at {@code text[i]} and {@code states[i]} to its state,
+     * or {@code ends[i]} to 0 if no key starts there, for each i from {@code offset}.
+     */
+    void findLongestMatches(final char[] text, final int offset, final int length, final boolean ignoreCase, final int[] ends,
+            final int[] states) {
+        Arrays.fill(ends, offset, length, 0);
+        int state = ROOT;
+        for (int end = offset; end < length;) {
+            final int codePoint = Character.codePointAt(text, end, length);
+            end += Character.charCount(codePoint);
+            state = next(state, ignoreCase ? Character.toLowerCase(codePoint) : codePoint);
+            for (int match = outputIndexes[state] >= 0 ? state : outputLinks[state]; match != ROOT; match = outputLinks[match]) {
+                final int start = end - depths[match];
+                if (start >= offset && ends[start] < end) {
+                    ends[start] = end;
+                    states[start] = match;
+                }
+            }
+        }
+    }
+
+    /**
+     * Returns the output of the key of a state set by {@link #findLongestMatches}.
+     */
+    BytesRef getOutput(final int state) {
+        return outputs[outputIndexes[state]];
+    }
+
+    int getMaxKeyLength() {
+        return maxKeyLength;
+    }
+}
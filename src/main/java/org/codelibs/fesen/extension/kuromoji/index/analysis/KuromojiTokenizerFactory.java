@@ -41,12 +41,11 @@ public class KuromojiTokenizerFactory extends AbstractTokenizerFactory {
 
     private static final String USER_DICT_PATH_OPTION = "user_dictionary";
     private static final String USER_DICT_RULES_OPTION = "user_dictionary_rules";
-    private static final String NBEST_COST = "nbest_cost";
-    private static final String NBEST_EXAMPLES = "nbest_examples";
+    public static final String NBEST_COST = "nbest_cost";
+    public static final String NBEST_EXAMPLES = "nbest_examples";
 
     private final UserDictionary userDictionary;
     private final Mode mode;
-    private final String nBestExamples;
     private final int nBestCost;
 
     private final boolean discartPunctuation;
@@ -56,8 +55,23 @@ public class KuromojiTokenizerFactory extends AbstractTokenizerFactory {
         mode = getMode(settings);
         userDictionary = getUserDictionary(env, settings);
         discartPunctuation = settings.getAsBoolean("discard_punctuation", true);
-        nBestCost = settings.getAsInt(NBEST_COST, -1);
-        nBestExamples = settings.get(NBEST_EXAMPLES);
+        nBestCost = calcNBestCost(userDictionary, discartPunctuation, mode, settings.getAsInt(NBEST_COST, -1), settings.get(NBEST_EXAMPLES));
+    }
+
+    /**
+     * Returns the n-best cost for the given settings. The cost of {@code nBestExamples} needs a lattice
+     * analysis of every example, so it should be computed once per dictionary and not per tokenizer.
+     */
+    public static int calcNBestCost(final UserDictionary userDictionary, final boolean discardPunctuation, final Mode mode,
+            final int nBestCost, final String nBestExamples) {
+        if (nBestExamples == null) {
+            return nBestCost;
+        }
+        try (JapaneseTokenizer t = new JapaneseTokenizer(userDictionary, discardPunctuation, mode)) {
+            return Math.max(nBestCost, t.calcNBestCost(nBestExamples));
+        } catch (final IOException e) {
+            throw new ElasticsearchException("failed to calculate nbest cost", e);
+        }
     }
 
     public static UserDictionary getUserDictionary(final Environment env, final Settings settings) {
@@ -66,6 +80,10 @@ public class KuromojiTokenizerFactory extends AbstractTokenizerFactory {
                     "It is not allowed to use [" + USER_DICT_PATH_OPTION + "] in conjunction" + " with [" + USER_DICT_RULES_OPTION + "]");
         }
         try {
+            final String path = settings.get(USER_DICT_PATH_OPTION);
+            if (path != null) {
+                return UserDictionaryLoader.load(env.configFile().resolve(path), USER_DICT_PATH_OPTION);
+            }
             final List<String> ruleList = Analysis.getWordList(env, settings, USER_DICT_PATH_OPTION, USER_DICT_RULES_OPTION, false);
             if (ruleList == null || ruleList.isEmpty()) {
                 return null;
@@ -111,10 +129,6 @@ public class KuromojiTokenizerFactory extends AbstractTokenizerFactory {
     @Override
     public Tokenizer create() {
         final JapaneseTokenizer t = new JapaneseTokenizer(userDictionary, discartPunctuation, mode);
-        int nBestCost = this.nBestCost;
-        if (nBestExamples != null) {
-            nBestCost = Math.max(nBestCost, t.calcNBestCost(nBestExamples));
-        }
         t.setNBestCost(nBestCost);
         return t;
     }
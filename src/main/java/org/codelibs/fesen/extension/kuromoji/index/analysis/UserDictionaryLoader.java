@@ -0,0 +1,212 @@
+package org.codelibs.fesen.extension.kuromoji.index.analysis;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.Reader;
+import java.nio.charset.CharacterCodingException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.HashSet;
+import java.util.Set;
+
+import org.apache.lucene.analysis.ja.dict.UserDictionary;
+import org.apache.lucene.analysis.ja.util.CSVUtil;
+
+/**
+ * Streams a user dictionary file into {@link UserDictionary} without keeping a copy of its lines.
+ * Duplicate surface forms are detected with 64-bit hashes, and only hashes seen more than once
+ * are verified against the actual surface forms in a second pass.
+ */
+public final class UserDictionaryLoader {
+
+    private UserDictionaryLoader() {
+    }
+
+    public static UserDictionary load(final Path path, final String settingName) throws IOException {
+        final LongHashSet hashes = new LongHashSet();
+        final LongHashSet collisions = new LongHashSet();
+        forEachEntry(path, settingName, (line, lineNum) -> {
+            final long hash = hash(CSVUtil.parse(line)[0]);
+            if (!hashes.add(hash)) {
+                collisions.add(hash);
+            }
+        });
+        if (hashes.size() == 0) {
+            return null;
+        }
+
+        if (collisions.size() > 0) {
+            final Set<String> surfaces = new HashSet<>();
+            forEachEntry(path, settingName, (line, lineNum) -> {
+                final String surface = CSVUtil.parse(line)[0];
+                if (collisions.contains(hash(surface)) && !surfaces.add(surface)) {
+                    throw new IllegalArgumentException("Found duplicate term [" + surface + "] in user dictionary " + "at line [" + lineNum + "]");
+                }
+            });
+        }
+
+        try (Reader reader = new EntryReader(newReader(path, settingName))) {
+            return UserDictionary.open(reader);
+        } catch (final CharacterCodingException e) {
+            throw invalidEncoding(path, settingName, e);
+        }
+    }
+
+    private static void forEachEntry(final Path path, final String settingName, final EntryConsumer consumer) throws IOException {
+        try (BufferedReader reader = newReader(path, settingName)) {
+            int lineNum = 0;
+            String line;
+            while ((line = reader.readLine()) != null) {
+                final String word = line.trim();
+                if (word.isEmpty()) {
+                    continue;
+                }
+                // ignore comments
+                if (!word.startsWith("#")) {
+                    consumer.accept(word, lineNum);
+                }
+                ++lineNum;
+            }
+        } catch (final CharacterCodingException e) {
+            throw invalidEncoding(path, settingName, e);
+        }
+    }
+
+    private static BufferedReader newReader(final Path path, final String settingName) {
+        try {
+            return Files.newBufferedReader(path, StandardCharsets.UTF_8);
+        } catch (final IOException e) {
+            throw new IllegalArgumentException("IOException while reading " + settingName + ": " + path, e);
+        }
+    }
+
+    private static IllegalArgumentException invalidEncoding(final Path path, final String settingName, final CharacterCodingException e) {
+        return new IllegalArgumentException(
+                "Unsupported character encoding detected while reading " + settingName + ": " + path + " - files must be UTF-8 encoded", e);
+    }
+
+    static long hash(final String value) {
+        // FNV-1a
+        long hash = 0xcbf29ce484222325L;
+        for (int i = 0; i < value.length(); i++) {
+            hash ^= value.charAt(i);
+            hash *= 0x100000001b3L;
+        }
+        return hash;
+    }
+
+    private interface EntryConsumer {
+        void accept(String line, int lineNum);
+    }
+
+    /**
+     * Open-addressing set of non-boxed longs.
+     */
+    static final class LongHashSet {
+        private long[] table = new long[1024];
+
+        private boolean hasZero;
+
+        private int size;
+
+        boolean add(final long value) {
+            if (value == 0) {
+                if (hasZero) {
+                    return false;
+                }
+                hasZero = true;
+                size++;
+                return true;
+            }
+            if ((size + 1) * 2 > table.length) {
+                rehash();
+            }
+            final int slot = find(table, value);
+            if (table[slot] == value) {
+                return false;
+            }
+            table[slot] = value;
+            size++;
+            return true;
+        }
+
+        boolean contains(final long value) {
+            if (value == 0) {
+                return hasZero;
+            }
+            return table[find(table, value)] == value;
+        }
+
+        int size() {
+            return size;
+        }
+
+        private void rehash() {
+            final long[] newTable = new long[table.length * 2];
+            for (final long value : table) {
+                if (value != 0) {
+                    newTable[find(newTable, value)] = value;
+                }
+            }
+            table = newTable;
+        }
+
+        private static int find(final long[] table, final long value) {
+            final int mask = table.length - 1;
+            int slot = (int) (value ^ (value >>> 32)) * 0x9E3779B9 & mask;
+            while (table[slot] != 0 && table[slot] != value) {
+                slot = (slot + 1) & mask;
+            }
+            return slot;
+        }
+    }
+
+    /**
+     * Reader of the trimmed, non-comment lines of a dictionary file.
+     */
+    private static final class EntryReader extends Reader {
+        private final BufferedReader reader;
+
+        private String line;
+
+        private int pos;
+
+        EntryReader(final BufferedReader reader) {
+            this.reader = reader;
+        }
+
+        @Override
+        public int read(final char[] cbuf, final int off, final int len) throws IOException {
+            if (len == 0) {
+                return 0;
+            }
+            while (line == null || pos > line.length()) {
+                final String next = reader.readLine();
+                if (next == null) {
+                    return -1;
+                }
+                final String word = next.trim();
+                if (!word.isEmpty() && !word.startsWith("#")) {
+                    line = word;
+                    pos = 0;
+                }
+            }
+            final int remaining = line.length() - pos;
+            if (remaining == 0) {
+                cbuf[off] = '\n';
+                pos++;
+                return 1;
+            }
+            final int n = Math.min(len, remaining);
+            line.getChars(pos, pos + n, cbuf, off);
+            pos += n;
+            return n;
+        }
+
+        @Override
+        public void close() throws IOException {
+            reader.close();
+        }
+    }
+}
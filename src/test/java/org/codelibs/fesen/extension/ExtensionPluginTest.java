@@ -169,6 +169,9 @@ public class ExtensionPluginTest {
             updateDictionary(userDictFiles[i], "東京スカイツリー,東京 スカイ ツリー,トウキョウ スカイ ツリー,カスタム名詞\n" + "朝青龍,朝青龍,アサショウリュウ,人名");
         }
 
+        // wait for the background reload
+        Thread.sleep(3000);
+
         final IndexResponse indexResponse2 =
                 runner.insert(index, type, "2", "{\"msg1\":\"東京スカイツリー\", \"msg2\":\"東京スカイツリー\", \"id\":\"2\"}");
         assertEquals(RestStatus.CREATED, indexResponse2.status());
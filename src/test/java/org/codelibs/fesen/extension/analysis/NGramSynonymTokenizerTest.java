@@ -23,8 +23,12 @@ import static org.junit.Assert.assertTrue;
 
 import java.io.IOException;
 import java.io.StringReader;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
 import java.text.ParseException;
-import java.util.PriorityQueue;
+import java.util.Arrays;
+import java.util.Random;
 
 import org.apache.lucene.analysis.Analyzer;
 import org.apache.lucene.analysis.TokenStream;
@@ -34,7 +38,8 @@ import org.apache.lucene.analysis.synonym.SynonymMap;
 import org.apache.lucene.analysis.tokenattributes.CharTermAttribute;
 import org.apache.lucene.analysis.tokenattributes.OffsetAttribute;
 import org.apache.lucene.analysis.tokenattributes.PositionIncrementAttribute;
-import org.codelibs.fesen.extension.analysis.NGramSynonymTokenizer.MyToken;
+import org.codelibs.fesen.common.settings.Settings;
+import org.codelibs.fesen.env.Environment;
 import org.junit.Test;
 
 public class NGramSynonymTokenizerTest {
@@ -57,6 +62,21 @@ public class NGramSynonymTokenizerTest {
         assertBlocks(tokenizer, "0,8,14", "あいうえお", "かきくけこ", "さしすせそ");
     }
 
+    @Test
+    public void testDelimiterTable() throws Exception {
+        final DelimiterTable table = DelimiterTable.of("/", Arrays.asList("punctuation", "Whitespace", "hiragana"));
+        assertTrue(table.contains('/'));
+        assertTrue(table.contains(','));
+        assertTrue(table.contains('\u3001'));
+        assertTrue(table.contains(' '));
+        assertTrue(table.contains('\u3000'));
+        assertTrue(table.contains('\u3042'));
+        assertFalse(table.contains('a'));
+        assertFalse(table.contains('+'));
+        assertFalse(table.contains('\u30a2'));
+        assertFalse(table.contains(-1));
+    }
+
     @Test
     public void testGetNextBlockLong() throws Exception {
         String src1 = getLengthDummyBlock(NGramSynonymTokenizer.BUFFER_SIZE - 2, 'a', ' ');
@@ -146,77 +166,40 @@ public class NGramSynonymTokenizerTest {
     }
 
     @Test
-    public void testMyTokensComparator() throws Exception {
-        final PriorityQueue<MyToken> pq = new PriorityQueue<>(10, new NGramSynonymTokenizer.MyTokensComparator());
-
-        final MyToken t1 = new MyToken("", 10, 11, 1);
-        pq.add(t1);
-        final MyToken t2 = new MyToken("", 9, 11, 0);
-        pq.add(t2);
-        final MyToken t3 = new MyToken("", 9, 11, 1);
-        pq.add(t3);
-        final MyToken t4 = new MyToken("", 8, 11, 1);
-        pq.add(t4);
-        final MyToken t5 = new MyToken("", 7, 11, 1);
-        pq.add(t5);
-        final MyToken t6 = new MyToken("", 7, 10, 1);
-        pq.add(t6);
-
-        assertEquals(t6, pq.poll());
-        assertEquals(t5, pq.poll());
-        assertEquals(t4, pq.poll());
-        assertEquals(t3, pq.poll());
-        assertEquals(t2, pq.poll());
-        assertEquals(t1, pq.poll());
-        assertNull(pq.poll());
+    public void testTokenBufferOrder() throws Exception {
+        final NGramSynonymTokenizer.TokenBuffer tokens = new NGramSynonymTokenizer.TokenBuffer();
+        final int t1 = tokens.add(10, 11, 1, Integer.MAX_VALUE);
+        final int t2 = tokens.add(9, 11, 0, Integer.MAX_VALUE);
+        final int t3 = tokens.add(9, 11, 1, Integer.MAX_VALUE);
+        final int t4 = tokens.add(8, 11, 1, Integer.MAX_VALUE);
+        final int t5 = tokens.add(7, 11, 1, Integer.MAX_VALUE);
+        final int t6 = tokens.add(7, 10, 1, Integer.MAX_VALUE);
+
+        assertEquals(t6, tokens.poll());
+        assertEquals(t5, tokens.poll());
+        assertEquals(t4, tokens.poll());
+        assertEquals(t3, tokens.poll());
+        assertEquals(t2, tokens.poll());
+        assertEquals(t1, tokens.poll());
+        assertEquals(-1, tokens.poll());
     }
 
     @Test
-    public void testMyTokenIdentical() throws Exception {
-        final MyToken t1 = new MyToken("token", 10, 11, 1);
-        final MyToken t2 = new MyToken("token", 10, 11, 1);
-        assertFalse(t1.identical(t2));
-        assertFalse(t2.identical(t2));
-        assertFalse(t2.identical(t1));
-
-        final MyToken t3 = new MyToken("token", 10, 11, 0);
-        assertTrue(t1.identical(t3));
-        assertFalse(t3.identical(t1));
-
-        final MyToken t4 = new MyToken("token", 10, 11, 0);
-        assertTrue(t1.identical(t4));
-        assertTrue(t3.identical(t4));
-        assertTrue(t4.identical(t3));
-    }
-
-    @Test
-    public void testGetNextUniqueToken() throws Exception {
-        final PriorityQueue<MyToken> pq = new PriorityQueue<>(10, new NGramSynonymTokenizer.MyTokensComparator());
-
-        final MyToken t1 = new MyToken("t1", 10, 11, 1);
-        pq.add(t1);
-        final MyToken t2 = new MyToken("t2", 9, 11, 0);
-        pq.add(t2);
-        final MyToken t3 = new MyToken("t3", 9, 11, 1);
-        pq.add(t3);
-        final MyToken t4 = new MyToken("t2", 9, 11, 0);
-        pq.add(t4);
-        final MyToken t5 = new MyToken("t5", 8, 11, 1);
-        pq.add(t5);
-        final MyToken t6 = new MyToken("t5", 8, 11, 0);
-        pq.add(t6);
-        final MyToken t7 = new MyToken("t7", 7, 11, 1);
-        pq.add(t7);
-        final MyToken t8 = new MyToken("t8", 7, 10, 1);
-        pq.add(t8);
-
-        assertEquals(t8, NGramSynonymTokenizer.getNextUniqueToken(pq, null));
-        assertEquals(t7, NGramSynonymTokenizer.getNextUniqueToken(pq, t8));
-        assertEquals(t5, NGramSynonymTokenizer.getNextUniqueToken(pq, t7));
-        assertEquals(t3, NGramSynonymTokenizer.getNextUniqueToken(pq, t5));
-        assertEquals(t2, NGramSynonymTokenizer.getNextUniqueToken(pq, t3));
-        assertEquals(t1, NGramSynonymTokenizer.getNextUniqueToken(pq, t2));
-        assertNull(NGramSynonymTokenizer.getNextUniqueToken(pq, t1));
+    public void testTokenBufferTie() throws Exception {
+        final NGramSynonymTokenizer.TokenBuffer tokens = new NGramSynonymTokenizer.TokenBuffer();
+        final int t1 = tokens.add(5, 6, 0, 2);
+        final int t2 = tokens.add(5, 6, 0, 1);
+        final char[] term = "abc".toCharArray();
+        final int t3 = tokens.add(5, 6, 0, 1, term, 0, term.length);
+
+        // by sequence, and then in the order of addition
+        assertEquals(t2, tokens.poll());
+        assertEquals(t3, tokens.poll());
+        assertEquals(t1, tokens.poll());
+        assertEquals(-1, tokens.poll());
+
+        tokens.clear();
+        assertEquals(-1, tokens.poll());
     }
 
     @Test
@@ -1369,6 +1352,177 @@ public class NGramSynonymTokenizerTest {
                 "gfed,0,4,1/fedc,1,5,1/edc,2,5,0/dc,3,5,0/c,4,5,0/a,5,6,1/aa,5,6,0/b,6,7,1/bb,6,7,0/c,7,8,1/cd,7,9,0/cde,7,10,0/cdef,7,11,0/defg,8,12,1/efg,9,12,0/fg,10,12,0/g,11,12,0/a,12,13,1/aa,12,13,0");
     }
 
+    @Test
+    public void testOverlaySynonyms() throws Exception {
+        final Analyzer a = new NGramSynonymTokenizerTestAnalyzer(1, false, "xx,aab", "cc,aa");
+        TokenStream stream = a.tokenStream("f", new StringReader("aa"));
+        stream.reset();
+        assertTokenStream(stream, "cc,0,2,1");
+        stream.close();
+
+        stream = a.tokenStream("f", new StringReader("aab"));
+        stream.reset();
+        assertTokenStream(stream, "xx,0,3,1");
+        stream.close();
+
+        final Analyzer b = new NGramSynonymTokenizerTestAnalyzer(1, false, "bb,aa", "cc,aa");
+        stream = b.tokenStream("f", new StringReader("aa"));
+        stream.reset();
+        assertTokenStream(stream, "cc,0,2,1");
+    }
+
+    @Test
+    public void testEmptiedOverlaySynonyms() throws Exception {
+        final Path home = Files.createTempDirectory("ngram-synonym");
+        final Path config = Files.createDirectories(home.resolve("config"));
+        final Environment env = new Environment(Settings.builder().put("path.home", home.toString()).build(), config);
+        Files.write(config.resolve("synonyms.txt"), "bb,aa".getBytes(StandardCharsets.UTF_8));
+        Files.write(config.resolve("overlay.txt"), "cc,aa".getBytes(StandardCharsets.UTF_8));
+        final SynonymLoader base = new SynonymLoader(env, Settings.builder().put("synonyms_path", "synonyms.txt").build(), false,
+                SynonymLoader.getAnalyzer(true));
+        final SynonymLoader overlay = new SynonymLoader(env, Settings.builder().put("synonyms_path", "overlay.txt")
+                .put("dynamic_reload", true).put("reload_interval", "1h").build(), false, SynonymLoader.getAnalyzer(true));
+        try (Tokenizer tokenizer = new NGramSynonymTokenizer(1, DelimiterTable.of(NGramSynonymTokenizer.DEFAULT_DELIMITERS), false, true,
+                base, overlay, "automaton", 0, false)) {
+            tokenizer.setReader(new StringReader("aa"));
+            tokenizer.reset();
+            assertTokenStream(tokenizer, "cc,0,2,1");
+            tokenizer.close();
+
+            // the base synonyms are used again
+            Files.write(config.resolve("overlay.txt"), new byte[0]);
+            overlay.reload();
+            assertNull(overlay.getSynonymMap());
+            tokenizer.setReader(new StringReader("aa"));
+            tokenizer.reset();
+            assertTokenStream(tokenizer, "bb,0,2,1");
+        } finally {
+            base.close();
+            overlay.close();
+            Files.delete(config.resolve("synonyms.txt"));
+            Files.delete(config.resolve("overlay.txt"));
+            Files.delete(config);
+            Files.delete(home);
+        }
+    }
+
+    @Test
+    public void testBlockWindow() throws Exception {
+        final Random random = new Random(0);
+        final String synonyms = "ab,x/bcd,yy/ca,z/dd,q/abcab,w";
+        for (int i = 0; i < 300; i++) {
+            final StringBuilder text = new StringBuilder();
+            final int length = random.nextInt(200);
+            for (int j = 0; j < length; j++) {
+                text.append("abcd ".charAt(random.nextInt(random.nextInt(8) == 0 ? 5 : 4)));
+            }
+            final int n = 1 + random.nextInt(3);
+            final boolean expand = random.nextBoolean();
+            final NGramSynonymTokenizerTestAnalyzer expected = new NGramSynonymTokenizerTestAnalyzer(n, expand, synonyms);
+            final NGramSynonymTokenizerTestAnalyzer actual = new NGramSynonymTokenizerTestAnalyzer(n, expand, synonyms);
+            actual.useMatcher = random.nextBoolean();
+            actual.windowSize = 1 + random.nextInt(20);
+            assertEquals(text.toString(), getTokens(expected, text.toString()), getTokens(actual, text.toString()));
+        }
+    }
+
+    @Test
+    public void testArtifactSynonyms() throws Exception {
+        final String synonyms = "ab,x/bcd,yy/ca,z/dd,東京/abcab,𠮷野家";
+        final Path dir = Files.createTempDirectory("ngram-synonym");
+        final Path source = dir.resolve("synonyms.txt");
+        try {
+            Files.write(source, synonyms.getBytes(StandardCharsets.UTF_8));
+            final Random random = new Random(0);
+            for (final boolean expand : new boolean[] { true, false }) {
+                final SynonymMap map = new NGramSynonymTokenizerTestAnalyzer(1, expand, synonyms).synonyms;
+                SynonymMapArtifact.write(source, Files.size(source), expand ? 1 : 0, "", map);
+                final SynonymMap artifactMap = SynonymMapArtifact.load(source, Files.size(source), expand ? 1 : 0, "");
+                assertTrue(SynonymMapArtifact.isArtifact(artifactMap));
+                // the words of an artifact are decoded on each hit
+                assertNull(DecodedSynonymWords.get(artifactMap));
+                for (int i = 0; i < 100; i++) {
+                    final StringBuilder text = new StringBuilder();
+                    final int length = random.nextInt(100);
+                    for (int j = 0; j < length; j++) {
+                        text.append("abcd ".charAt(random.nextInt(random.nextInt(8) == 0 ? 5 : 4)));
+                    }
+                    final int n = 1 + random.nextInt(3);
+                    final NGramSynonymTokenizerTestAnalyzer expected =
+                            new NGramSynonymTokenizerTestAnalyzer(n, NGramSynonymTokenizer.DEFAULT_DELIMITERS, expand, map);
+                    final NGramSynonymTokenizerTestAnalyzer actual =
+                            new NGramSynonymTokenizerTestAnalyzer(n, NGramSynonymTokenizer.DEFAULT_DELIMITERS, expand, artifactMap);
+                    actual.useMatcher = random.nextBoolean();
+                    assertEquals(text.toString(), getTokens(expected, text.toString()), getTokens(actual, text.toString()));
+                }
+                // the file stays open while the tokenizers use the map
+                SynonymMapArtifact.release(artifactMap);
+            }
+        } finally {
+            Files.deleteIfExists(SynonymMapArtifact.getArtifactPath(source));
+            Files.deleteIfExists(source);
+            Files.deleteIfExists(dir);
+        }
+    }
+
+    @Test
+    public void testCoveringGrams() throws Exception {
+        NGramSynonymTokenizerTestAnalyzer a = new NGramSynonymTokenizerTestAnalyzer(2);
+        a.coveringGrams = true;
+        TokenStream stream = a.tokenStream("f", new StringReader("abcdefg"));
+        stream.reset();
+        assertTokenStream(stream, "ab,0,2,1/cd,2,4,2/ef,4,6,2/fg,5,7,1");
+
+        a = new NGramSynonymTokenizerTestAnalyzer(3);
+        a.coveringGrams = true;
+        stream = a.tokenStream("f", new StringReader("abcdef hij"));
+        stream.reset();
+        assertTokenStream(stream, "abc,0,3,1/def,3,6,3/hij,7,10,1");
+
+        a = new NGramSynonymTokenizerTestAnalyzer(2, true, "a,aa/b,bb");
+        a.coveringGrams = true;
+        stream = a.tokenStream("f", new StringReader("cdefabcdefa"));
+        stream.reset();
+        assertTokenStream(stream,
+                "cd,0,2,1/ef,2,4,2/f,3,4,0/a,4,5,1/aa,4,5,0/b,5,6,1/bb,5,6,0/c,6,7,1/cd,6,8,0/ef,8,10,2/f,9,10,0/a,10,11,1/aa,10,11,0");
+
+        // the windowed tokens are the same
+        final Random random = new Random(0);
+        final String synonyms = "ab,x/bcd,yy/ca,z/dd,q/abcab,w";
+        for (int i = 0; i < 300; i++) {
+            final StringBuilder text = new StringBuilder();
+            final int length = random.nextInt(200);
+            for (int j = 0; j < length; j++) {
+                text.append("abcd ".charAt(random.nextInt(random.nextInt(8) == 0 ? 5 : 4)));
+            }
+            final int n = 1 + random.nextInt(4);
+            final boolean expand = random.nextBoolean();
+            final NGramSynonymTokenizerTestAnalyzer expected = new NGramSynonymTokenizerTestAnalyzer(n, expand, synonyms);
+            expected.coveringGrams = true;
+            final NGramSynonymTokenizerTestAnalyzer actual = new NGramSynonymTokenizerTestAnalyzer(n, expand, synonyms);
+            actual.coveringGrams = true;
+            actual.windowSize = 1 + random.nextInt(20);
+            assertEquals(text.toString(), getTokens(expected, text.toString()), getTokens(actual, text.toString()));
+        }
+    }
+
+    private String getTokens(final Analyzer analyzer, final String text) throws IOException {
+        final StringBuilder buf = new StringBuilder();
+        try (TokenStream stream = analyzer.tokenStream("f", new StringReader(text))) {
+            final CharTermAttribute termAtt = stream.getAttribute(CharTermAttribute.class);
+            final OffsetAttribute offsetAtt = stream.getAttribute(OffsetAttribute.class);
+            final PositionIncrementAttribute posIncAtt = stream.getAttribute(PositionIncrementAttribute.class);
+            stream.reset();
+            while (stream.incrementToken()) {
+                buf.append(termAtt).append(',').append(offsetAtt.startOffset()).append(',').append(offsetAtt.endOffset()).append(',')
+                        .append(posIncAtt.getPositionIncrement()).append('/');
+            }
+            stream.end();
+            buf.append(offsetAtt.endOffset());
+        }
+        return buf.toString();
+    }
+
     private void assertTokenStream(final TokenStream stream, final String expectedStream) throws Exception {
 
         final String[] expectedTokens = expectedStream.split("/");
@@ -1420,6 +1574,13 @@ public class NGramSynonymTokenizerTest {
         final String delimiters;
         final boolean expand;
         final SynonymMap synonyms;
+        SynonymMap overlaySynonyms;
+
+        boolean useMatcher = true;
+
+        int windowSize = 0;
+
+        boolean coveringGrams = false;
 
         public NGramSynonymTokenizerTestAnalyzer(final int n) {
             this(n, NGramSynonymTokenizer.DEFAULT_DELIMITERS, false);
@@ -1444,6 +1605,11 @@ public class NGramSynonymTokenizerTest {
             this.synonyms = getSynonymMap(synonyms, expand);
         }
 
+        public NGramSynonymTokenizerTestAnalyzer(final int n, final boolean expand, final String synonyms, final String overlaySynonyms) {
+            this(n, NGramSynonymTokenizer.DEFAULT_DELIMITERS, expand, synonyms);
+            this.overlaySynonyms = getSynonymMap(overlaySynonyms, expand);
+        }
+
         public NGramSynonymTokenizerTestAnalyzer(final int n, final String delimiters, final boolean expand, final SynonymMap synonyms) {
             this.n = n;
             this.delimiters = delimiters;
@@ -1453,7 +1619,8 @@ public class NGramSynonymTokenizerTest {
 
         @Override
         protected TokenStreamComponents createComponents(final String fieldName) {
-            final Tokenizer source = new NGramSynonymTokenizer(n, delimiters, expand, true, new SynonymLoader(null, null, expand, null) {
+            final Tokenizer source = new NGramSynonymTokenizer(n, DelimiterTable.of(delimiters), expand, true,
+                    new SynonymLoader(null, null, expand, null) {
                 @Override
                 public SynonymMap getSynonymMap() {
                     return synonyms;
@@ -1463,7 +1630,17 @@ public class NGramSynonymTokenizerTest {
                 protected void createSynonymMap(final boolean reload) {
                     // nothing
                 }
-            });
+            }, overlaySynonyms == null ? null : new SynonymLoader(null, null, expand, null) {
+                @Override
+                public SynonymMap getSynonymMap() {
+                    return overlaySynonyms;
+                }
+
+                @Override
+                protected void createSynonymMap(final boolean reload) {
+                    // nothing
+                }
+            }, useMatcher ? "automaton" : "fst", windowSize, coveringGrams);
             return new TokenStreamComponents(source);
         }
 
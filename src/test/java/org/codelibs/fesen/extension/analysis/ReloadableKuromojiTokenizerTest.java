@@ -0,0 +1,393 @@
+package org.codelibs.fesen.extension.analysis;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.BufferedInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.Reader;
+import java.io.StringReader;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.stream.Stream;
+
+import org.apache.lucene.analysis.Tokenizer;
+import org.apache.lucene.analysis.charfilter.MappingCharFilter;
+import org.apache.lucene.analysis.charfilter.NormalizeCharMap;
+import org.apache.lucene.analysis.ja.JapaneseTokenizer;
+import org.apache.lucene.analysis.ja.JapaneseTokenizer.Mode;
+import org.apache.lucene.analysis.ja.dict.TokenInfoDictionary;
+import org.apache.lucene.analysis.ja.tokenattributes.BaseFormAttribute;
+import org.apache.lucene.analysis.ja.tokenattributes.PartOfSpeechAttribute;
+import org.apache.lucene.analysis.ja.tokenattributes.ReadingAttribute;
+import org.apache.lucene.analysis.tokenattributes.CharTermAttribute;
+import org.apache.lucene.analysis.tokenattributes.OffsetAttribute;
+import org.apache.lucene.analysis.tokenattributes.PositionIncrementAttribute;
+import org.apache.lucene.analysis.tokenattributes.PositionLengthAttribute;
+import org.apache.lucene.store.DataInput;
+import org.apache.lucene.store.InputStreamDataInput;
+import org.apache.lucene.util.fst.FST;
+import org.apache.lucene.util.fst.IntsRefFSTEnum;
+import org.apache.lucene.util.fst.PositiveIntOutputs;
+import org.codelibs.fesen.common.settings.Settings;
+import org.codelibs.fesen.env.Environment;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class ReloadableKuromojiTokenizerTest {
+
+    private static final String[] FRAGMENTS = { "東京スカイツリー", "に行きました", "。", "、", "関西国際空港", "で", "iPhone", "15", "を買った", " ",
+            "ｶﾀｶﾅ", "カタカナ", "ＡＢＣ", "１２３", "abc", "(株)", "&amp;", "!", "?", "\n", "テスト", "😀", "ー", "です", ".", "," };
+
+    private static final String[] SCRIPT_FRAGMENTS = { "hello", "world", "iPhone", "Pro", "15", "2024", " ", "  ", "\t", "-", ".", "/",
+            "http://example.com/", "v1.2", "USB-C", "Tシャツ", "ΑΒΓ", "Жук", "😀", "#", "(株)", "&amp;", "年", "モデル", "東京スカイツリー", "に行きました",
+            "。", "、", "ＡＢＣ", "１２３", "ｶﾀｶﾅ", "a", "I", "OK", "!", "\n" };
+
+    private static final NormalizeCharMap CHAR_MAP;
+
+    static {
+        final NormalizeCharMap.Builder builder = new NormalizeCharMap.Builder();
+        builder.add("(株)", "株式会社");
+        builder.add("&amp;", "&");
+        CHAR_MAP = builder.build();
+    }
+
+    private Path home;
+
+    private Environment env;
+
+    private ReloadableUserDictionary userDictionary;
+
+    @Before
+    public void setUp() throws Exception {
+        home = Files.createTempDirectory("kuromoji-tokenizer");
+        Files.createDirectories(home.resolve("config"));
+        env = new Environment(Settings.builder().put("path.home", home.toString()).build(), home.resolve("config"));
+        userDictionary = new ReloadableUserDictionary(env, Settings.builder()
+                .putList("user_dictionary_rules", "東京スカイツリー,東京 スカイツリー,トウキョウ スカイツリー,カスタム名詞", "iPhone,iPhone,アイフォーン,カスタム名詞")
+                .build());
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        userDictionary.close();
+        try (Stream<Path> paths = Files.walk(home)) {
+            for (final Path path : (Iterable<Path>) paths.sorted((a, b) -> b.compareTo(a))::iterator) {
+                Files.deleteIfExists(path);
+            }
+        }
+    }
+
+    @Test
+    public void testSharedAttributes() throws Exception {
+        final Random random = new Random(1);
+        for (final Mode mode : Mode.values()) {
+            for (final boolean discardPunctuation : new boolean[] { true, false }) {
+                try (Tokenizer expected = new JapaneseTokenizer(userDictionary.getSnapshot().getUserDictionary(), discardPunctuation, mode);
+                        Tokenizer actual = new ReloadableKuromojiTokenizer(userDictionary, discardPunctuation, mode, s -> 0)) {
+                    // the tokenizers are reused, as in an analyzer
+                    for (int i = 0; i < 50; i++) {
+                        final String text = randomText(random, 40);
+                        assertTokens(text, expected, actual);
+                    }
+                }
+            }
+        }
+    }
+
+    @Test
+    public void testSegmentationCache() throws Exception {
+        final Random random = new Random(2);
+        for (final Mode mode : Mode.values()) {
+            for (final boolean discardPunctuation : new boolean[] { true, false }) {
+                final SegmentationCache cache = new SegmentationCache(1000, 64);
+                try (Tokenizer expected = new JapaneseTokenizer(userDictionary.getSnapshot().getUserDictionary(), discardPunctuation, mode);
+                        Tokenizer actual =
+                                new ReloadableKuromojiTokenizer(userDictionary, discardPunctuation, mode, s -> 0, cache, 0, 0, 0, false)) {
+                    for (int i = 0; i < 50; i++) {
+                        // some of the texts are longer than the cached ones
+                        final String text = randomText(random, 20);
+                        assertTokens(text, expected, actual);
+                        // replayed from the cache
+                        assertTokens(text, expected, actual);
+                    }
+                }
+                assertTrue(cache.count() > 0);
+            }
+        }
+    }
+
+    @Test
+    public void testSegmentationCacheReload() throws Exception {
+        final Path file = home.resolve("config").resolve("userdict.txt");
+        Files.write(file, "東京スカイツリー,東京 スカイツリー,トウキョウ スカイツリー,カスタム名詞".getBytes(StandardCharsets.UTF_8));
+        final ReloadableUserDictionary fileDictionary =
+                new ReloadableUserDictionary(env, Settings.builder().put("user_dictionary", "userdict.txt").put("reload_interval", "1h").build());
+        try {
+            final SegmentationCache cache = new SegmentationCache(1000, 64);
+            final String text = "関西国際空港から東京スカイツリーに行く";
+            try (Tokenizer actual = new ReloadableKuromojiTokenizer(fileDictionary, true, Mode.SEARCH, s -> 0, cache, 0, 0, 0, false)) {
+                final List<String> tokens = getTokens(actual, new StringReader(text));
+                assertEquals(1, cache.count());
+                try (Tokenizer expected = new JapaneseTokenizer(fileDictionary.getSnapshot().getUserDictionary(), true, Mode.SEARCH)) {
+                    assertEquals(getTokens(expected, new StringReader(text)), tokens);
+                }
+
+                Files.write(file, ("東京スカイツリー,東京 スカイツリー,トウキョウ スカイツリー,カスタム名詞\n"
+                        + "関西国際空港,関西国際空港,カンサイコクサイクウコウ,カスタム名詞").getBytes(StandardCharsets.UTF_8));
+                fileDictionary.reload();
+                assertEquals(1, fileDictionary.getSnapshot().getGeneration());
+
+                final List<String> newTokens = getTokens(actual, new StringReader(text));
+                assertNotEquals(tokens, newTokens);
+                try (Tokenizer expected = new JapaneseTokenizer(fileDictionary.getSnapshot().getUserDictionary(), true, Mode.SEARCH)) {
+                    assertEquals(getTokens(expected, new StringReader(text)), newTokens);
+                }
+                // the entries of the previous generation are dropped
+                assertEquals(1, cache.count());
+                assertEquals(newTokens, getTokens(actual, new StringReader(text)));
+            }
+        } finally {
+            fileDictionary.close();
+        }
+    }
+
+    @Test
+    public void testParallelChunks() throws Exception {
+        final Random random = new Random(3);
+        for (final Mode mode : Mode.values()) {
+            for (final boolean discardPunctuation : new boolean[] { true, false }) {
+                try (Tokenizer expected = new JapaneseTokenizer(userDictionary.getSnapshot().getUserDictionary(), discardPunctuation, mode);
+                        Tokenizer actual =
+                                new ReloadableKuromojiTokenizer(userDictionary, discardPunctuation, mode, s -> 0, null, 50, 20, 0, false)) {
+                    for (int i = 0; i < 50; i++) {
+                        // each chunk is segmented on its own
+                        assertTokens(randomText(random, 80), expected, actual,
+                                (text, start, length) -> length >= 50 ? ReloadableKuromojiTokenizer.findChunkEnd(text, start, length, 20) : length);
+                    }
+                }
+            }
+        }
+    }
+
+    @Test
+    public void testFindChunkEnd() {
+        final char[] text = "あいう。えお！！かき\nくけこ".toCharArray();
+        assertEquals(4, ReloadableKuromojiTokenizer.findChunkEnd(text, 0, text.length, 1));
+        assertEquals(4, ReloadableKuromojiTokenizer.findChunkEnd(text, 0, text.length, 4));
+        // after the last one of consecutive boundaries
+        assertEquals(8, ReloadableKuromojiTokenizer.findChunkEnd(text, 0, text.length, 5));
+        assertEquals(8, ReloadableKuromojiTokenizer.findChunkEnd(text, 4, text.length, 3));
+        assertEquals(11, ReloadableKuromojiTokenizer.findChunkEnd(text, 8, text.length, 1));
+        // no boundary before the end
+        assertEquals(text.length, ReloadableKuromojiTokenizer.findChunkEnd(text, 11, text.length, 1));
+        assertEquals(text.length, ReloadableKuromojiTokenizer.findChunkEnd(text, 0, text.length, 100));
+    }
+
+    @Test
+    public void testLatticeWindow() throws Exception {
+        final Random random = new Random(4);
+        for (final Mode mode : Mode.values()) {
+            for (final boolean discardPunctuation : new boolean[] { true, false }) {
+                try (Tokenizer expected = new JapaneseTokenizer(userDictionary.getSnapshot().getUserDictionary(), discardPunctuation, mode);
+                        Tokenizer actual =
+                                new ReloadableKuromojiTokenizer(userDictionary, discardPunctuation, mode, s -> 0, null, 0, 0, 16, false)) {
+                    for (int i = 0; i < 50; i++) {
+                        // each window is segmented on its own
+                        assertTokens(randomText(random, 40), expected, actual, (text, start, length) -> {
+                            if (length - start < 16) {
+                                return length;
+                            }
+                            return start + LatticeWindow.findCut(Arrays.copyOfRange(text, start, start + 16), 16);
+                        });
+                    }
+                }
+            }
+        }
+    }
+
+    @Test
+    public void testFindCut() {
+        // a sentence end in the second half
+        assertCut("あいうえおかきく。けこ", 9);
+        assertCut("abcdefg. hij", 8);
+        // not in the first half
+        assertCut("あ。いうえおかきくけ", 10);
+        // whitespace or comma before a change of the character class
+        assertCut("あいうえおカキ、くけ", 8);
+        assertCut("あいうえおカキ くけ", 8);
+        assertCut("あいうえおかきカキク", 7);
+        // a period without whitespace is not a sentence end
+        assertCut("1234567.89", 7);
+        // not between surrogates
+        assertCut("ああああああああ\uD83D\uDE00", 8);
+        assertCut("あああああああああ\uD83D", 9);
+    }
+
+    private static void assertCut(final String text, final int cut) {
+        assertEquals(text, cut, LatticeWindow.findCut(text.toCharArray(), text.length()));
+    }
+
+    @Test
+    public void testScriptFastPath() throws Exception {
+        final Random random = new Random(5);
+        for (final Mode mode : Mode.values()) {
+            for (final boolean discardPunctuation : new boolean[] { true, false }) {
+                try (Tokenizer expected = new JapaneseTokenizer(userDictionary.getSnapshot().getUserDictionary(), discardPunctuation, mode);
+                        Tokenizer actual =
+                                new ReloadableKuromojiTokenizer(userDictionary, discardPunctuation, mode, s -> 0, null, 0, 0, 0, true)) {
+                    for (int i = 0; i < 200; i++) {
+                        assertTokens(randomText(random, 40, SCRIPT_FRAGMENTS), expected, actual);
+                    }
+                    assertTokens("iPhone 15 Pro Max USB-C 2024年モデル", expected, actual);
+                    assertTokens("Tシャツ hello world 123 😀", expected, actual);
+                    assertTokens("", expected, actual);
+                }
+            }
+        }
+
+        // n-best paths are not restricted to the runs
+        try (JapaneseTokenizer expected = new JapaneseTokenizer(userDictionary.getSnapshot().getUserDictionary(), true, Mode.SEARCH);
+                Tokenizer actual = new ReloadableKuromojiTokenizer(userDictionary, true, Mode.SEARCH, s -> 2000, null, 0, 0, 0, true)) {
+            expected.setNBestCost(2000);
+            for (int i = 0; i < 50; i++) {
+                assertTokens(randomText(random, 40, SCRIPT_FRAGMENTS), expected, actual);
+            }
+        }
+    }
+
+    @Test
+    public void testScriptFastPathLongText() throws Exception {
+        final Random random = new Random(6);
+        final StringBuilder noRuns = new StringBuilder();
+        while (noRuns.length() <= 2000) {
+            noRuns.append("東京スカイツリーに行きました");
+        }
+        try (Tokenizer expected = new JapaneseTokenizer(userDictionary.getSnapshot().getUserDictionary(), true, Mode.SEARCH);
+                Tokenizer actual = new ReloadableKuromojiTokenizer(userDictionary, true, Mode.SEARCH, s -> 0, null, 0, 0, 0, true)) {
+            // more than 1024 characters between runs
+            assertTokens("hello " + noRuns + " world", expected, actual);
+            // longer than the buffered input
+            final StringBuilder buf = new StringBuilder();
+            while (buf.length() <= 64 * 1024) {
+                buf.append(randomText(random, 40, SCRIPT_FRAGMENTS));
+            }
+            assertTokens(buf.toString(), expected, actual);
+            assertTokens("iPhone 15 Pro Max", expected, actual);
+        }
+    }
+
+    @Test
+    public void testMaxSystemWordLength() throws Exception {
+        try (InputStream is = new BufferedInputStream(TokenInfoDictionary.class.getResourceAsStream("TokenInfoDictionary$fst.dat"))) {
+            final DataInput in = new InputStreamDataInput(is);
+            final IntsRefFSTEnum<Long> fstEnum = new IntsRefFSTEnum<>(new FST<>(in, in, PositiveIntOutputs.getSingleton()));
+            int maxLength = 0;
+            IntsRefFSTEnum.InputOutput<Long> word;
+            while ((word = fstEnum.next()) != null) {
+                maxLength = Math.max(maxLength, word.input.length);
+            }
+            assertEquals(maxLength, ScriptRunSegmenter.MAX_SYSTEM_WORD_LENGTH);
+        }
+    }
+
+    static String randomText(final Random random, final int fragments) {
+        return randomText(random, fragments, FRAGMENTS);
+    }
+
+    private static String randomText(final Random random, final int fragments, final String[] from) {
+        final StringBuilder buf = new StringBuilder();
+        final int count = random.nextInt(fragments + 1);
+        for (int i = 0; i < count; i++) {
+            buf.append(from[random.nextInt(from.length)]);
+        }
+        return buf.toString();
+    }
+
+    private static void assertTokens(final String text, final Tokenizer expected, final Tokenizer actual) throws IOException {
+        assertEquals(text, getTokens(expected, new StringReader(text)), getTokens(actual, new StringReader(text)));
+        assertEquals(text, getTokens(expected, new MappingCharFilter(CHAR_MAP, new StringReader(text))),
+                getTokens(actual, new MappingCharFilter(CHAR_MAP, new StringReader(text))));
+    }
+
+    /**
+     * Compares the tokens with those of {@code expected} for each segment of the text that {@code segments} returns.
+     */
+    private static void assertTokens(final String text, final Tokenizer expected, final Tokenizer actual, final Segmenter segments)
+            throws IOException {
+        assertEquals(text, getSegmentedTokens(expected, new StringReader(text), segments), getTokens(actual, new StringReader(text)));
+        assertEquals(text, getSegmentedTokens(expected, new MappingCharFilter(CHAR_MAP, new StringReader(text)), segments),
+                getTokens(actual, new MappingCharFilter(CHAR_MAP, new StringReader(text))));
+    }
+
+    private static List<String> getSegmentedTokens(final Tokenizer tokenizer, final Reader reader, final Segmenter segments)
+            throws IOException {
+        final StringBuilder buf = new StringBuilder();
+        final char[] chars = new char[1024];
+        int n;
+        while ((n = reader.read(chars)) != -1) {
+            buf.append(chars, 0, n);
+        }
+        final char[] text = buf.toString().toCharArray();
+        final List<String> tokens = new ArrayList<>();
+        int start = 0;
+        while (start < text.length) {
+            final int end = segments.next(text, start, text.length);
+            final List<String> segmentTokens = getTokens(tokenizer, new StringReader(new String(text, start, end - start)));
+            for (final String token : segmentTokens.subList(0, segmentTokens.size() - 1)) {
+                final String[] values = token.split("/", -1);
+                final String[] offsets = values[4].split("-");
+                values[4] = correctOffset(reader, start + Integer.parseInt(offsets[0])) + "-"
+                        + correctOffset(reader, start + Integer.parseInt(offsets[1]));
+                tokens.add(String.join("/", values));
+            }
+            start = end;
+        }
+        tokens.add("end=" + correctOffset(reader, text.length));
+        return tokens;
+    }
+
+    private static int correctOffset(final Reader reader, final int offset) {
+        return reader instanceof MappingCharFilter ? ((MappingCharFilter) reader).correctOffset(offset) : offset;
+    }
+
+    interface Segmenter {
+        /**
+         * Returns the end of the segment that starts at {@code start}.
+         */
+        int next(char[] text, int start, int length);
+    }
+
+    /**
+     * Returns the tokens with their attributes, and the final offset of {@link Tokenizer#end()}.
+     */
+    static List<String> getTokens(final Tokenizer tokenizer, final Reader reader) throws IOException {
+        final CharTermAttribute termAtt = tokenizer.addAttribute(CharTermAttribute.class);
+        final OffsetAttribute offsetAtt = tokenizer.addAttribute(OffsetAttribute.class);
+        final PositionIncrementAttribute posIncAtt = tokenizer.addAttribute(PositionIncrementAttribute.class);
+        final PositionLengthAttribute posLengthAtt = tokenizer.addAttribute(PositionLengthAttribute.class);
+        final PartOfSpeechAttribute posAtt = tokenizer.addAttribute(PartOfSpeechAttribute.class);
+        final BaseFormAttribute baseFormAtt = tokenizer.addAttribute(BaseFormAttribute.class);
+        final ReadingAttribute readingAtt = tokenizer.addAttribute(ReadingAttribute.class);
+        final List<String> tokens = new ArrayList<>();
+        tokenizer.setReader(reader);
+        tokenizer.reset();
+        while (tokenizer.incrementToken()) {
+            tokens.add(termAtt.toString() + "/" + posAtt.getPartOfSpeech() + "/" + baseFormAtt.getBaseForm() + "/" + readingAtt.getReading()
+                    + "/" + offsetAtt.startOffset() + "-" + offsetAtt.endOffset() + "/" + posIncAtt.getPositionIncrement() + "/"
+                    + posLengthAtt.getPositionLength());
+        }
+        tokenizer.end();
+        tokens.add("end=" + offsetAtt.endOffset());
+        tokenizer.close();
+        return tokens;
+    }
+}
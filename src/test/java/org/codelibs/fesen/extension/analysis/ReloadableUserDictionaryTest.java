@@ -0,0 +1,121 @@
+package org.codelibs.fesen.extension.analysis;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.stream.Stream;
+
+import org.apache.lucene.analysis.ja.dict.UserDictionary;
+import org.codelibs.fesen.common.settings.Settings;
+import org.codelibs.fesen.env.Environment;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class ReloadableUserDictionaryTest {
+
+    private Path home;
+
+    private Environment env;
+
+    @Before
+    public void setUp() throws Exception {
+        home = Files.createTempDirectory("user-dictionary");
+        Files.createDirectories(home.resolve("config"));
+        env = new Environment(Settings.builder().put("path.home", home.toString()).build(), home.resolve("config"));
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        try (Stream<Path> paths = Files.walk(home)) {
+            for (final Path path : (Iterable<Path>) paths.sorted((a, b) -> b.compareTo(a))::iterator) {
+                Files.deleteIfExists(path);
+            }
+        }
+    }
+
+    @Test
+    public void testReload() throws Exception {
+        final Path file = writeDictionary("userdict.txt", "東京スカイツリー,東京 スカイツリー,トウキョウ スカイツリー,カスタム名詞");
+        final ReloadableUserDictionary dictionary = new ReloadableUserDictionary(env, getSettings(file));
+        try {
+            final ReloadableUserDictionary.Snapshot snapshot = dictionary.getSnapshot();
+            assertEquals(0, snapshot.getGeneration());
+
+            dictionary.reload();
+            assertSame(snapshot, dictionary.getSnapshot());
+
+            writeDictionary("userdict.txt", "関西国際空港,関西 国際 空港,カンサイ コクサイ クウコウ,カスタム名詞");
+            dictionary.reload();
+            final ReloadableUserDictionary.Snapshot newSnapshot = dictionary.getSnapshot();
+            assertEquals(1, newSnapshot.getGeneration());
+            assertNotSame(snapshot.getUserDictionary(), newSnapshot.getUserDictionary());
+        } finally {
+            dictionary.close();
+        }
+    }
+
+    @Test
+    public void testScheduleReload() throws Exception {
+        final Path file = writeDictionary("userdict.txt", "東京スカイツリー,東京 スカイツリー,トウキョウ スカイツリー,カスタム名詞");
+        final ReloadableUserDictionary dictionary = new ReloadableUserDictionary(env, getSettings(file));
+        try {
+            writeDictionary("userdict.txt", "関西国際空港,関西 国際 空港,カンサイ コクサイ クウコウ,カスタム名詞");
+            // keyed by the checksum of the watcher
+            dictionary.scheduleReload(ContentDigest.of(file));
+            assertTrue(ResourceWatcherTest.waitFor(() -> dictionary.getSnapshot().getGeneration() == 1));
+            final char[] text = "関西国際空港".toCharArray();
+            assertTrue(dictionary.getSnapshot().getUserDictionary().lookup(text, 0, text.length).length > 0);
+        } finally {
+            dictionary.close();
+        }
+    }
+
+    @Test
+    public void testReloadAfterClose() throws Exception {
+        final Path file = writeDictionary("userdict.txt", "東京スカイツリー,東京 スカイツリー,トウキョウ スカイツリー,カスタム名詞");
+        final ReloadableUserDictionary dictionary = new ReloadableUserDictionary(env, getSettings(file));
+        final ReloadableUserDictionary.Snapshot snapshot = dictionary.getSnapshot();
+        dictionary.close();
+
+        writeDictionary("userdict.txt", "関西国際空港,関西 国際 空港,カンサイ コクサイ クウコウ,カスタム名詞");
+        dictionary.reload();
+        assertSame(snapshot, dictionary.getSnapshot());
+    }
+
+    @Test
+    public void testSharedDictionary() throws Exception {
+        final Path file = writeDictionary("userdict.txt", "東京スカイツリー,東京 スカイツリー,トウキョウ スカイツリー,カスタム名詞");
+        final ReloadableUserDictionary dictionary1 = new ReloadableUserDictionary(env, getSettings(file));
+        final ReloadableUserDictionary dictionary2 = new ReloadableUserDictionary(env, getSettings(file));
+        try {
+            final UserDictionary userDictionary = dictionary1.getSnapshot().getUserDictionary();
+            assertSame(userDictionary, dictionary2.getSnapshot().getUserDictionary());
+            dictionary1.close();
+            dictionary2.close();
+
+            // released by close()
+            final ReloadableUserDictionary dictionary3 = new ReloadableUserDictionary(env, getSettings(file));
+            assertNotSame(userDictionary, dictionary3.getSnapshot().getUserDictionary());
+            dictionary3.close();
+        } finally {
+            dictionary1.close();
+            dictionary2.close();
+        }
+    }
+
+    private Path writeDictionary(final String name, final String... lines) throws Exception {
+        final Path file = home.resolve("config").resolve(name);
+        Files.write(file, String.join("\n", lines).getBytes(StandardCharsets.UTF_8));
+        return file;
+    }
+
+    private Settings getSettings(final Path file) {
+        return Settings.builder().put("user_dictionary", file.getFileName().toString()).put("reload_interval", "1h").build();
+    }
+}
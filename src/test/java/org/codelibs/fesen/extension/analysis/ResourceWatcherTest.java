@@ -0,0 +1,97 @@
+package org.codelibs.fesen.extension.analysis;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.BooleanSupplier;
+import java.util.stream.Stream;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class ResourceWatcherTest {
+
+    private Path dir;
+
+    @Before
+    public void setUp() throws Exception {
+        dir = Files.createTempDirectory("resource-watcher");
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        try (Stream<Path> paths = Files.list(dir)) {
+            for (final Path path : (Iterable<Path>) paths::iterator) {
+                Files.deleteIfExists(path);
+            }
+        }
+        Files.deleteIfExists(dir);
+    }
+
+    @Test
+    public void testListenersOfSameFile() throws Exception {
+        final Path file = dir.resolve("dict.txt");
+        Files.write(file, "a".getBytes(StandardCharsets.UTF_8));
+        final AtomicInteger changes1 = new AtomicInteger();
+        final AtomicInteger changes2 = new AtomicInteger();
+        final ResourceWatcher watcher = ResourceWatcher.getInstance();
+        final ResourceWatcher.Registration registration1 = watcher.watch(file, 50, checksum -> changes1.incrementAndGet());
+        final ResourceWatcher.Registration registration2 = watcher.watch(dir.resolve(".").resolve("dict.txt"), 50,
+                checksum -> changes2.incrementAndGet());
+        try {
+            assertEquals(registration1.getFile(), registration2.getFile());
+
+            Files.write(file, "ab".getBytes(StandardCharsets.UTF_8));
+            assertTrue(waitFor(() -> changes1.get() == 1 && changes2.get() == 1));
+
+            registration1.cancel();
+            Files.write(file, "abc".getBytes(StandardCharsets.UTF_8));
+            assertTrue(waitFor(() -> changes2.get() == 2));
+            assertEquals(1, changes1.get());
+        } finally {
+            registration1.cancel();
+            registration2.cancel();
+        }
+    }
+
+    @Test
+    public void testChecksumAndCounts() throws Exception {
+        final Path file = dir.resolve("dict.txt");
+        Files.write(file, "a".getBytes(StandardCharsets.UTF_8));
+        final AtomicLong checksum = new AtomicLong();
+        final ResourceWatcher watcher = ResourceWatcher.getInstance();
+        final ResourceWatcher.Registration registration = watcher.watch(file, 50, checksum::set);
+        try {
+            // touched only
+            final long skipped = watcher.getSkippedReloadCount();
+            assertTrue(file.toFile().setLastModified(file.toFile().lastModified() + 10000));
+            assertTrue(waitFor(() -> watcher.getSkippedReloadCount() > skipped));
+            assertEquals(0, checksum.get());
+
+            final long performed = watcher.getPerformedReloadCount();
+            Files.write(file, "ab".getBytes(StandardCharsets.UTF_8));
+            assertTrue(waitFor(() -> checksum.get() == ContentDigest.of("ab")));
+            assertTrue(watcher.getPerformedReloadCount() > performed);
+        } finally {
+            registration.cancel();
+        }
+    }
+
+    static boolean waitFor(final BooleanSupplier condition) throws InterruptedException {
+        final long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(10);
+        while (System.nanoTime() < deadline) {
+            if (condition.getAsBoolean()) {
+                return true;
+            }
+            Thread.sleep(20);
+        }
+        return condition.getAsBoolean();
+    }
+}
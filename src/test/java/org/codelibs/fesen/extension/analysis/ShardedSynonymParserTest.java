@@ -0,0 +1,91 @@
+package org.codelibs.fesen.extension.analysis;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+import java.io.StringReader;
+
+import org.apache.lucene.analysis.Analyzer;
+import org.apache.lucene.analysis.synonym.SolrSynonymParser;
+import org.apache.lucene.analysis.synonym.SynonymMap;
+import org.apache.lucene.analysis.synonym.WordnetSynonymParser;
+import org.apache.lucene.store.ByteBuffersDataOutput;
+import org.apache.lucene.util.BytesRef;
+import org.junit.Test;
+
+public class ShardedSynonymParserTest {
+
+    // duplicates are 2 lines apart, so they are in different shards with 1 or 2 lines per shard
+    private static final String SOLR_RULES = String.join("\n", //
+            "# comment", //
+            "a,b", //
+            "c => d", //
+            "a,b", //
+            "c => d,e", //
+            "", //
+            "Foo Bar,fb", //
+            "b,a", //
+            "foo bar,fb", //
+            "x,y,z", //
+            "z => x");
+
+    private static final String WORDNET_RULES = String.join("\n", //
+            "s(100000001,1,'woods',n,1,0).", //
+            "s(100000001,2,'wood',n,1,0).", //
+            "s(100000001,3,'forest',n,1,0).", //
+            "s(100000002,1,'wood',n,1,0).", //
+            "s(100000002,2,'woods',n,1,0).", //
+            "s(100000003,1,'forest',n,1,0).", //
+            "s(100000003,2,'woods',n,1,0).", //
+            "s(100000003,3,'wood',n,1,0).", //
+            "s(100000004,1,'fast food',n,1,0).", //
+            "s(100000004,2,'junk food',n,1,0).");
+
+    @Test
+    public void testSolr() throws Exception {
+        for (final boolean expand : new boolean[] { true, false }) {
+            final Analyzer analyzer = SynonymLoader.getAnalyzer(true);
+            final SolrSynonymParser parser = new SolrSynonymParser(true, expand, analyzer);
+            parser.parse(new StringReader(SOLR_RULES));
+            final SynonymMap expected = parser.build();
+            for (final int shardLines : new int[] { 1, 2, 3, 1000 }) {
+                assertSynonymMap(expand + "/" + shardLines, expected,
+                        ShardedSynonymParser.parse(new StringReader(SOLR_RULES), false, expand, analyzer, shardLines));
+            }
+        }
+    }
+
+    @Test
+    public void testWordnet() throws Exception {
+        for (final boolean expand : new boolean[] { true, false }) {
+            final Analyzer analyzer = SynonymLoader.getAnalyzer(true);
+            final WordnetSynonymParser parser = new WordnetSynonymParser(true, expand, analyzer);
+            parser.parse(new StringReader(WORDNET_RULES));
+            final SynonymMap expected = parser.build();
+            // synsets are not split, even with shards smaller than a synset
+            for (final int shardLines : new int[] { 1, 2, 3, 1000 }) {
+                assertSynonymMap(expand + "/" + shardLines, expected,
+                        ShardedSynonymParser.parse(new StringReader(WORDNET_RULES), true, expand, analyzer, shardLines));
+            }
+        }
+    }
+
+    private static void assertSynonymMap(final String message, final SynonymMap expected, final SynonymMap actual) throws Exception {
+        assertEquals(message, expected.maxHorizontalContext, actual.maxHorizontalContext);
+        assertEquals(message, expected.words.size(), actual.words.size());
+        final BytesRef expectedWord = new BytesRef();
+        final BytesRef actualWord = new BytesRef();
+        for (int i = 0; i < expected.words.size(); i++) {
+            expected.words.get(i, expectedWord);
+            actual.words.get(i, actualWord);
+            assertEquals(message, expectedWord, actualWord);
+        }
+        assertArrayEquals(message, toBytes(expected), toBytes(actual));
+    }
+
+    private static byte[] toBytes(final SynonymMap map) throws Exception {
+        final ByteBuffersDataOutput out = new ByteBuffersDataOutput();
+        map.fst.save(out, out);
+        return out.toArrayCopy();
+    }
+}
@@ -0,0 +1,59 @@
+package org.codelibs.fesen.extension.analysis;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+
+import java.lang.ref.Reference;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.codelibs.fesen.index.Index;
+import org.junit.Test;
+
+public class SharedResourceRegistryTest {
+
+    @Test
+    public void testAcquireAndRelease() {
+        final SharedResourceRegistry<String, Object> registry = new SharedResourceRegistry<>();
+        final AtomicInteger loads = new AtomicInteger();
+        final SharedResourceRegistry.Lease<Object> lease1 = registry.acquire("a", () -> {
+            loads.incrementAndGet();
+            return new Object();
+        });
+        final SharedResourceRegistry.Lease<Object> lease2 = registry.acquire("a", Object::new);
+        assertSame(lease1.get(), lease2.get());
+        assertEquals(1, loads.get());
+        assertEquals(1, registry.size());
+
+        lease1.release();
+        lease1.release();
+        assertEquals(1, registry.size());
+        lease2.release();
+        assertEquals(0, registry.size());
+    }
+
+    @Test
+    public void testCleanupOnIndexRemoval() {
+        final SharedResourceRegistry<String, Object> registry = new SharedResourceRegistry<>();
+        final Index index = new Index("test", "_na_");
+        final Index otherIndex = new Index("other", "_na_");
+        final Object owner = new Object();
+        final SharedResourceRegistry.Lease<Object> lease = registry.acquire("a", Object::new);
+        final AtomicInteger cleanups = new AtomicInteger();
+        SharedResourceRegistry.registerCleanup(owner, index, () -> {
+            cleanups.incrementAndGet();
+            lease.release();
+        });
+
+        SharedResourceRegistry.runCleanups(otherIndex);
+        assertEquals(0, cleanups.get());
+        assertEquals(1, registry.size());
+
+        SharedResourceRegistry.runCleanups(index);
+        assertEquals(1, cleanups.get());
+        assertEquals(0, registry.size());
+
+        SharedResourceRegistry.runCleanups(index);
+        assertEquals(1, cleanups.get());
+        Reference.reachabilityFence(owner);
+    }
+}
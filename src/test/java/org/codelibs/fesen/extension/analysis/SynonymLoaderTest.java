@@ -0,0 +1,196 @@
+package org.codelibs.fesen.extension.analysis;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.stream.Stream;
+
+import org.apache.lucene.analysis.synonym.SynonymMap;
+import org.apache.lucene.store.AlreadyClosedException;
+import org.codelibs.fesen.common.settings.Settings;
+import org.codelibs.fesen.env.Environment;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class SynonymLoaderTest {
+
+    private Path home;
+
+    private Environment env;
+
+    @Before
+    public void setUp() throws Exception {
+        home = Files.createTempDirectory("synonym-loader");
+        Files.createDirectories(home.resolve("config"));
+        env = new Environment(Settings.builder().put("path.home", home.toString()).build(), home.resolve("config"));
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        try (Stream<Path> paths = Files.walk(home)) {
+            for (final Path path : (Iterable<Path>) paths.sorted((a, b) -> b.compareTo(a))::iterator) {
+                Files.deleteIfExists(path);
+            }
+        }
+    }
+
+    @Test
+    public void testReload() throws Exception {
+        writeSynonyms("a,b");
+        final SynonymLoader loader = new SynonymLoader(env, getSettings(), true, SynonymLoader.getAnalyzer(true));
+        try {
+            final long generation = loader.getGeneration();
+            final SynonymMap map = loader.getSynonymMap();
+            assertFalse(loader.isUpdate(generation));
+
+            writeSynonyms("a,b", "c,d");
+            loader.reload();
+            assertTrue(loader.isUpdate(generation));
+            assertEquals(generation + 1, loader.getGeneration());
+            assertNotSame(map, loader.getSynonymMap());
+        } finally {
+            loader.close();
+        }
+    }
+
+    @Test
+    public void testReloadAfterClose() throws Exception {
+        writeSynonyms("a,b");
+        final SynonymLoader loader = new SynonymLoader(env, getSettings(), true, SynonymLoader.getAnalyzer(true));
+        final long generation = loader.getGeneration();
+        final SynonymMap map = loader.getSynonymMap();
+        loader.close();
+
+        writeSynonyms("a,b", "c,d");
+        loader.reload();
+        assertFalse(loader.isUpdate(generation));
+        assertSame(map, loader.getSynonymMap());
+    }
+
+    @Test
+    public void testSharedMap() throws Exception {
+        writeSynonyms("a,b");
+        final SynonymLoader loader1 = new SynonymLoader(env, getSettings(), true, SynonymLoader.getAnalyzer(true));
+        final SynonymLoader loader2 = new SynonymLoader(env, getSettings(), true, SynonymLoader.getAnalyzer(true));
+        final SynonymMap map = loader1.getSynonymMap();
+        assertSame(map, loader2.getSynonymMap());
+
+        writeSynonyms("a,b", "c,d");
+        loader1.reload();
+        final SynonymMap newMap = loader1.getSynonymMap();
+        assertNotSame(map, newMap);
+        assertSame(map, loader2.getSynonymMap());
+        loader2.reload();
+        assertSame(newMap, loader2.getSynonymMap());
+
+        // the released map is built again
+        loader1.close();
+        loader2.close();
+        final SynonymLoader loader3 = new SynonymLoader(env, getSettings(), true, SynonymLoader.getAnalyzer(true));
+        try {
+            assertNotSame(newMap, loader3.getSynonymMap());
+        } finally {
+            loader3.close();
+        }
+    }
+
+    @Test
+    public void testArtifactWrite() throws Exception {
+        writeSynonyms("a,b");
+        final Path artifact = SynonymMapArtifact.getArtifactPath(home.resolve("config").resolve("synonyms.txt"));
+        final Settings settings = Settings.builder().put("synonyms_path", "synonyms.txt").put("synonyms_artifact", true).build();
+        SynonymLoader loader = new SynonymLoader(env, settings, true, SynonymLoader.getAnalyzer(true));
+        assertNotNull(loader.getSynonymMap());
+        loader.close();
+        assertFalse(Files.exists(artifact));
+
+        loader = new SynonymLoader(env, Settings.builder().put(settings).put("synonyms_artifact_write", true).build(), true,
+                SynonymLoader.getAnalyzer(true));
+        assertNotNull(loader.getSynonymMap());
+        loader.close();
+        assertTrue(Files.exists(artifact));
+    }
+
+    @Test
+    public void testArtifactMatcher() throws Exception {
+        writeSynonyms("a,b");
+        final Settings settings = Settings.builder().put("synonyms_path", "synonyms.txt").put("synonyms_artifact", true).build();
+        final SynonymLoader parsedLoader = new SynonymLoader(env, settings, true, SynonymLoader.getAnalyzer(true));
+        final SynonymMap parsedMap = parsedLoader.getSynonymMap();
+        parsedLoader.close();
+        assertFalse(SynonymMapArtifact.isArtifact(parsedMap));
+        assertTrue(SynonymMatcher.isEnabled(null, parsedMap));
+
+        final SynonymLoader loader = new SynonymLoader(env, Settings.builder().put(settings).put("synonyms_artifact_write", true).build(),
+                true, SynonymLoader.getAnalyzer(true));
+        try {
+            final SynonymMap map = loader.getSynonymMap();
+            assertTrue(SynonymMapArtifact.isArtifact(map));
+            // the off-heap FST is walked unless the automaton is requested
+            assertFalse(SynonymMatcher.isEnabled(null, map));
+            assertFalse(SynonymMatcher.isEnabled("fst", map));
+            assertTrue(SynonymMatcher.isEnabled("automaton", map));
+        } finally {
+            loader.close();
+        }
+    }
+
+    @Test
+    public void testWriteArtifact() throws Exception {
+        writeSynonyms("a,b");
+        final Settings settings = Settings.builder().put("synonyms_path", "synonyms.txt").put("expand", false).build();
+        SynonymLoader.writeArtifact(env, settings);
+
+        final SynonymLoader loader = new SynonymLoader(env, Settings.builder().put(settings).put("synonyms_artifact", true).build(), false,
+                SynonymLoader.getAnalyzer(true));
+        try {
+            assertTrue(SynonymMapArtifact.isArtifact(loader.getSynonymMap()));
+        } finally {
+            loader.close();
+        }
+    }
+
+    @Test
+    public void testArtifactClose() throws Exception {
+        writeSynonyms("a,b");
+        final Settings settings = Settings.builder().put("synonyms_path", "synonyms.txt").put("synonyms_artifact", true)
+                .put("synonyms_artifact_write", true).build();
+        final SynonymLoader loader = new SynonymLoader(env, settings, true, SynonymLoader.getAnalyzer(true));
+        final SynonymMap map = loader.getSynonymMap();
+        assertTrue(SynonymMapArtifact.isArtifact(map));
+        final Object owner = new Object();
+        final Runnable release = SynonymMapArtifact.retain(owner, map);
+        assertNotNull(release);
+
+        // still retained by the owner
+        loader.close();
+        map.fst.getBytesReader();
+
+        release.run();
+        try {
+            map.fst.getBytesReader();
+            fail();
+        } catch (final AlreadyClosedException e) {
+            // the mapped file is closed
+        }
+        assertNull(SynonymMapArtifact.retain(owner, map));
+    }
+
+    private void writeSynonyms(final String... lines) throws Exception {
+        Files.write(home.resolve("config").resolve("synonyms.txt"), String.join("\n", lines).getBytes(StandardCharsets.UTF_8));
+    }
+
+    private Settings getSettings() {
+        return Settings.builder().put("synonyms_path", "synonyms.txt").put("dynamic_reload", true).put("reload_interval", "1h").build();
+    }
+}
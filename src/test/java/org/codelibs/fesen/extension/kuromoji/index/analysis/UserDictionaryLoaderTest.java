@@ -0,0 +1,98 @@
+package org.codelibs.fesen.extension.kuromoji.index.analysis;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.StringReader;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+import org.apache.lucene.analysis.ja.dict.UserDictionary;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class UserDictionaryLoaderTest {
+
+    private Path file;
+
+    @Before
+    public void setUp() throws Exception {
+        file = Files.createTempFile("userdict", ".txt");
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        Files.deleteIfExists(file);
+    }
+
+    @Test
+    public void testLoad() throws Exception {
+        write("# comment", "", "  東京スカイツリー,東京 スカイツリー,トウキョウ スカイツリー,カスタム名詞  ", "\t", "#関西国際空港,関西 国際 空港,カンサイ コクサイ クウコウ,カスタム名詞",
+                "朝青龍,朝青龍,アサショウリュウ,カスタム人名");
+        final UserDictionary dictionary = UserDictionaryLoader.load(file, "user_dictionary");
+        final UserDictionary expected = UserDictionary.open(new StringReader(
+                "東京スカイツリー,東京 スカイツリー,トウキョウ スカイツリー,カスタム名詞\n朝青龍,朝青龍,アサショウリュウ,カスタム人名\n"));
+
+        for (final String text : new String[] { "東京スカイツリーに行く", "朝青龍", "関西国際空港" }) {
+            final char[] chars = text.toCharArray();
+            assertArrayEquals(text, expected.lookup(chars, 0, chars.length), dictionary.lookup(chars, 0, chars.length));
+        }
+        // commented out
+        final char[] comment = "関西国際空港".toCharArray();
+        assertEquals(0, dictionary.lookup(comment, 0, comment.length).length);
+    }
+
+    @Test
+    public void testEmpty() throws Exception {
+        write("# comment", "", "  ");
+        assertNull(UserDictionaryLoader.load(file, "user_dictionary"));
+    }
+
+    @Test
+    public void testDuplicate() throws Exception {
+        // blank lines are not counted, and comments are, as in the word list of user_dictionary_rules
+        write("# comment", "", "東京スカイツリー,東京 スカイツリー,トウキョウ スカイツリー,カスタム名詞", "朝青龍,朝青龍,アサショウリュウ,カスタム人名", "",
+                " 東京スカイツリー,東京 スカイツリー,トウキョウ スカイツリー,カスタム名詞");
+        try {
+            UserDictionaryLoader.load(file, "user_dictionary");
+            fail();
+        } catch (final IllegalArgumentException e) {
+            assertEquals("Found duplicate term [東京スカイツリー] in user dictionary at line [3]", e.getMessage());
+        }
+    }
+
+    @Test
+    public void testDuplicateHash() {
+        final UserDictionaryLoader.LongHashSet set = new UserDictionaryLoader.LongHashSet();
+        for (long i = 0; i < 10000; i++) {
+            assertTrue(set.add(i * 0x100000000L));
+        }
+        for (long i = 0; i < 10000; i++) {
+            assertFalse(set.add(i * 0x100000000L));
+            assertTrue(set.contains(i * 0x100000000L));
+        }
+        assertFalse(set.contains(1));
+        assertEquals(10000, set.size());
+    }
+
+    @Test
+    public void testInvalidEncoding() throws Exception {
+        Files.write(file, new byte[] { (byte) 0xff, (byte) 0xfe, ',', 'a' });
+        try {
+            UserDictionaryLoader.load(file, "user_dictionary");
+            fail();
+        } catch (final IllegalArgumentException e) {
+            assertTrue(e.getMessage(), e.getMessage().startsWith("Unsupported character encoding detected while reading user_dictionary"));
+        }
+    }
+
+    private void write(final String... lines) throws Exception {
+        Files.write(file, String.join("\n", lines).getBytes(StandardCharsets.UTF_8));
+    }
+}